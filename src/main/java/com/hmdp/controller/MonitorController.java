@@ -0,0 +1,82 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.RateLimiter;
+import com.hmdp.utils.SeckillStockReconciler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 运行状态监控
+ * </p>
+ */
+@RestController
+@RequestMapping("/monitor")
+public class MonitorController {
+
+    @Resource
+    private RateLimiter rateLimiter;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillStockReconciler stockReconciler;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    /**
+     * 各限流器放行和拒绝的次数
+     * @return 限流器名称 -> {admitted, rejected}
+     */
+    @GetMapping("/rate-limit")
+    public Result rateLimit() {
+        return Result.ok(rateLimiter.stats());
+    }
+
+    /**
+     * 订单队列的积压情况：stream模式下为各分片pending-list的积压数量、消费延迟和死信数量，ring-buffer模式下为各环的积压数量
+     */
+    @GetMapping("/order-stream")
+    public Result orderStream() {
+        return Result.ok(voucherOrderService.queryOrderStreamStats());
+    }
+
+    /**
+     * 最近一次秒杀库存对账的结果
+     * @return 优惠券id -> Redis与MySQL中的库存、购买数和差异
+     */
+    @GetMapping("/stock-reconcile")
+    public Result stockReconcile() {
+        return Result.ok(stockReconciler.lastReport());
+    }
+
+    /**
+     * 缓存各级的命中和未命中次数
+     * @return local：JVM本地缓存，redis：Redis缓存
+     */
+    @GetMapping("/cache")
+    public Result cache() {
+        return Result.ok(cacheClient.stats());
+    }
+
+    /**
+     * 布隆过滤器的id数量和拦截次数
+     * @return 缓存key前缀 -> {loaded, ids, rejected}
+     */
+    @GetMapping("/bloom")
+    public Result bloom() {
+        return Result.ok(idBloomFilter.stats());
+    }
+}
@@ -3,10 +3,9 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import com.hmdp.utils.RateLimit;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -26,7 +25,19 @@ public class VoucherOrderController {
     private IVoucherOrderService voucherOrderService;
 
     @PostMapping("seckill/{id}")
+    @RateLimit(globalLimit = 2000, userLimit = 5)
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckill(voucherId);
     }
+
+    /**
+     * 查询秒杀订单的处理状态：PENDING、CREATED、FAILED
+     * @param orderId 秒杀接口返回的订单id
+     * @param timeout 长轮询等待时间，毫秒，订单还在处理中时最多等待这么久，处理完成后立即返回
+     */
+    @GetMapping("status/{id}")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId,
+                                                   @RequestParam(value = "timeout", defaultValue = "0") Long timeout) {
+        return voucherOrderService.queryOrderStatus(orderId, timeout);
+    }
 }
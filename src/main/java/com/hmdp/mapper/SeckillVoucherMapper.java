@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +16,17 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
+    /**
+     * 按优惠券分组扣减库存，一条UPDATE ... CASE语句，库存不足扣减数量的优惠券不更新
+     * @param counts 优惠券id -> 扣减数量
+     * @return 影响行数，小于counts的大小时说明有优惠券库存不足
+     */
+    int decreaseStockBatch(@Param("counts") Map<Long, Integer> counts);
+
+    /**
+     * 按优惠券分组回补库存，用于取消订单
+     * @param counts 优惠券id -> 回补数量
+     * @return 影响行数
+     */
+    int increaseStockBatch(@Param("counts") Map<Long, Integer> counts);
 }
@@ -2,6 +2,10 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +17,41 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 插入订单，主键重复或者用户已有该券未取消的订单时忽略
+     * @param order 订单
+     * @return 影响行数，0表示订单已存在
+     */
+    int insertIgnore(VoucherOrder order);
+
+    /**
+     * 批量插入订单，一条多值INSERT IGNORE
+     * @param orders 订单列表
+     * @return 影响行数，小于订单数表示有订单已存在
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 批量取消未支付的订单
+     * @param ids 订单id
+     * @return 影响行数
+     */
+    int cancelUnpaid(@Param("ids") List<Long> ids);
+
+    /**
+     * 对账：按主键顺序统计一个优惠券的一段订单
+     * @param voucherId 优惠券id
+     * @param lastId 上一段最后一个订单id
+     * @param size 每段订单数
+     * @return rows：这一段的订单数，sold：其中未取消的订单数，lastId：这一段最后一个订单id
+     */
+    Map<String, Object> countChunk(@Param("voucherId") Long voucherId, @Param("lastId") long lastId, @Param("size") int size);
+
+    /**
+     * 对账：在给定用户中查找购买了该优惠券且订单未取消的用户
+     * @param voucherId 优惠券id
+     * @param userIds 用户id
+     * @return 数据库中有订单的用户id
+     */
+    List<Long> selectBuyers(@Param("voucherId") Long voucherId, @Param("userIds") List<Long> userIds);
 }
@@ -4,6 +4,11 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +21,13 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckill(Long seckillId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    boolean createVoucherOrder(VoucherOrder voucherOrder);
+
+    void createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
+
+    List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds);
+
+    Map<String, Object> queryOrderStreamStats();
+
+    DeferredResult<Result> queryOrderStatus(Long orderId, Long timeout);
 }
@@ -1,32 +1,32 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.OrderQueue;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillSoldOutMarker;
+import com.hmdp.utils.SeckillStockLeaser;
+import com.hmdp.utils.SeckillWaitingRoom;
 import com.hmdp.utils.UserHolder;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.request.async.DeferredResult;
 
-import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -49,7 +49,35 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private SeckillSoldOutMarker soldOutMarker;
+
+    @Resource
+    private SeckillStockLeaser stockLeaser;
+
+    @Resource
+    private SeckillWaitingRoom waitingRoom;
+
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+
+    //订单队列，由seckill.order.queue选择Redis Stream或进程内环形队列
+    @Resource
+    private OrderQueue orderQueue;
+
+    //长轮询最长等待时间
+    @Value("${seckill.order.status-max-wait-ms:30000}")
+    private long statusMaxWaitMs;
+
+    //等待室模式：先领排队号，只有前 总库存*multiplier 个用户进入秒杀
+    @Value("${seckill.waiting-room.enabled:false}")
+    private boolean waitingRoomEnabled;
+
+    //库存租约模式：库存在本地租约中扣减，lua脚本只做一人一单校验和发送消息
+    @Value("${seckill.stock.lease-enabled:false}")
+    private boolean stockLeaseEnabled;
 
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
 
@@ -59,87 +87,12 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setResultType(Long.class);
     }
 
-    private IVoucherOrderService proxy;
+    //订单stream分片数，按 voucherId % shards 选择分片，seckill.lua使用同样的规则
+    @Value("${seckill.order.shards:1}")
+    private int shardCount;
 
     //阻塞队列
     //private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
-    //异步处理线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
-
-    //在类初始化之后执行，因为当这个类初始化好了之后，随时都是有可能要执行的
-    //投喂线程操作
-    @PostConstruct
-    private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
-    }
-
-    private class VoucherOrderHandler implements Runnable {
-        String queueName = "stream.orders";
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
-                    // 2.判断订单信息是否为空
-                    if (list == null || list.isEmpty()) {
-                        // 如果为null，说明没有消息，继续下一次循环
-                        continue;
-                    }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.创建订单
-                    handleVoucherOrder(voucherOrder);
-                    // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    //处理异常消息
-                    handlePendingList();
-                }
-            }
-        }
-
-        private void handlePendingList() {
-            while (true) {
-                try {
-                    // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-                    // 2.判断订单信息是否为空
-                    if (list == null || list.isEmpty()) {
-                        // 如果为null，说明pending-list没有异常消息，结束循环
-                        break;
-                    }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.创建订单
-                    handleVoucherOrder(voucherOrder);
-                    // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理pending订单异常", e);
-                    try{
-                        Thread.sleep(20);
-                    }catch(Exception ex){
-                        ex.printStackTrace();
-                    }
-                }
-            }
-        }
-    }
-
 
     /*
     // 用于线程池处理的任务
@@ -164,51 +117,78 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }
     */
 
-    //在创建订单前做安全检查（锁）
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        //1.获取用户
-        Long userId = voucherOrder.getUserId();
-        // 2.创建锁对象
-        RLock redisLock = redissonClient.getLock("lock:order:" + userId);
-        // 3.尝试获取锁
-        boolean isLock = redisLock.tryLock();
-        // 4.判断是否获得锁成功
-        if (!isLock) {
-            // 获取锁失败，直接返回失败或者重试
-            log.error("不允许重复下单！");
-            return;
-        }
-        try {
-            //注意：由于是spring的事务是放在threadLocal中，此时的是多线程，事务会失效
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            // 释放锁
-            redisLock.unlock();
-        }
-    }
-
     //秒杀接口
     @Override
     public Result seckill(Long voucherId) {
+        // 0.本地已标记售罄，直接拒绝，不再生成订单id，也不访问Redis
+        if (soldOutMarker.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
         //获取用户
         Long userId = UserHolder.getUser().getId();
+        // 0.订单消费跟不上时直接拒绝，不再往队列中写入新消息
+        if (orderQueue.isOverloaded(voucherId, userId)) {
+            return Result.fail("系统繁忙，请稍后再试");
+        }
+        // 0.1.等待室模式下先领排队号，没有拿到名额的请求不再执行秒杀脚本
+        if (waitingRoomEnabled) {
+            int ticket = waitingRoom.enter(voucherId, userId);
+            if (ticket == SeckillWaitingRoom.WAIT) {
+                return Result.fail("抢购人数过多，请稍后再试");
+            }
+            if (ticket == SeckillWaitingRoom.SOLD_OUT) {
+                // 租约模式下Redis库存为0时其它实例可能还有租约，不广播售罄
+                if (!stockLeaseEnabled) {
+                    soldOutMarker.markSoldOut(voucherId);
+                }
+                return Result.fail("库存不足");
+            }
+        }
+        // 0.2.租约模式下先扣减本地库存，本地和Redis都没有库存时直接返回
+        //    租约是各实例各自持有的，Redis库存为0不代表其它实例卖完了，所以这里不广播售罄
+        if (stockLeaseEnabled && !stockLeaser.tryAcquire(voucherId)) {
+            return Result.fail("库存不足");
+        }
         //获取订单id
         long orderId = redisIdWorker.nextId("order");
         // 1.执行lua脚本
         Long result = stringRedisTemplate.execute(
                 SECKILL_SCRIPT,
                 Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
+                voucherId.toString(), userId.toString(), String.valueOf(orderId), String.valueOf(shardCount),
+                stockLeaseEnabled ? "1" : "0", String.valueOf(System.currentTimeMillis()),
+                String.valueOf(orderStatusTracker.getStatusTtlSeconds()),
+                orderQueue.isPublishedByScript() ? "1" : "0"
         );
         int r = result.intValue();
         // 2.判断结果是否为0
         if (r != 0) {
             // 2.1.不为0 ，代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+            if (stockLeaseEnabled) {
+                // 本地已经扣过库存，放回租约
+                stockLeaser.release(voucherId);
+            }
+            if (r == 1) {
+                // 标记售罄并通知其它实例
+                soldOutMarker.markSoldOut(voucherId);
+                return Result.fail("库存不足");
+            }
+            if (r == 3) {
+                return Result.fail("秒杀尚未开始");
+            }
+            if (r == 4) {
+                return Result.fail("秒杀已经结束");
+            }
+            return Result.fail("不能重复下单");
+        }
+        // 2.2.为0，订单没有在脚本中写入stream时交给进程内队列
+        if (!orderQueue.isPublishedByScript()) {
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(orderId);
+            voucherOrder.setUserId(userId);
+            voucherOrder.setVoucherId(voucherId);
+            orderQueue.publish(voucherOrder);
         }
-
-        //3.获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
 
         // 3.返回订单id
         return Result.ok(orderId);
@@ -251,26 +231,91 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }
      */
 
+    //订单队列的积压情况
+    @Override
+    public Map<String, Object> queryOrderStreamStats() {
+        return orderQueue.stats();
+    }
+
+    //查询秒杀订单的处理状态，只读Redis；timeout大于0时长轮询，订单处理完成后立即返回
+    @Override
+    public DeferredResult<Result> queryOrderStatus(Long orderId, Long timeout) {
+        Long userId = UserHolder.getUser().getId();
+        long waitMs = Math.min(timeout == null ? 0 : timeout, statusMaxWaitMs);
+        return orderStatusTracker.await(userId, orderId, waitMs);
+    }
+
     //专门在做创建订单的操作
+    //依靠主键和(user_id, voucher_id, active)唯一索引以及INSERT IGNORE保证幂等：消息重复投递或用户重复下单时插入0行，不再扣库存；
+    //已取消的订单不占用唯一索引，用户重新购买时插入新的一行，已取消订单的消息重复投递时也不会恢复它
+    //返回值表示这个订单是否已经存在于数据库中
+    @Override
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        // 5.1.查询订单
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        // 5.2.判断是否存在
-        if (count > 0) {
-            // 用户已经购买过了
-            log.error("用户已经购买过了");
-            return;
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
+        // 5.插入订单
+        int inserted = getBaseMapper().insertIgnore(voucherOrder);
+        if (inserted == 0) {
+            // 订单已存在（消息重复投递），或者用户已经用别的订单买过了
+            log.warn("订单已存在，忽略：" + voucherOrder.getId());
+            return getById(voucherOrder.getId()) != null;
         }
 
         // 6.扣减库存
-        boolean success = seckillVoucherService.update()
+        seckillVoucherService.update()
                 .setSql("stock = stock - 1") // set stock = stock - 1
                 .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0) // where id = ? and stock > 0
                 .update();
+        return true;
+    }
 
-        save(voucherOrder);
+    //批量创建订单：一条多值INSERT IGNORE + 一条按优惠券分组的库存UPDATE
+    //一人一单和库存校验已经由lua脚本在Redis中完成，这里不再逐条加锁和查询
+    @Override
+    @Transactional
+    public void createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+        // 1.批量插入订单
+        int inserted = getBaseMapper().insertBatch(voucherOrders);
+        if (inserted != voucherOrders.size()) {
+            // 有重复订单时无法知道该给哪些券扣库存，回滚后由调用方逐条处理
+            throw new IllegalStateException("批量订单中有" + (voucherOrders.size() - inserted) + "条已存在");
+        }
+        // 2.统计每个优惠券要扣减的数量
+        Map<Long, Integer> counts = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.summingInt(o -> 1)));
+        // 3.扣减库存，有优惠券库存不足时回滚整批，由调用方逐条处理（逐条扣减带 stock > 0 条件）
+        int updated = seckillVoucherMapper.decreaseStockBatch(counts);
+        if (updated != counts.size()) {
+            throw new IllegalStateException("批量订单中有" + (counts.size() - updated) + "个优惠券库存不足");
+        }
+    }
+
+    //取消超时未支付的订单并回补数据库库存，返回真正被取消的订单
+    //已支付或已经被取消的订单在加锁后的状态检查中被过滤掉
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 1.锁定仍未支付的订单 select ... where id in (...) and status = 1 for update
+        List<VoucherOrder> orders = query()
+                .in("id", orderIds)
+                .eq("status", 1)
+                .last("FOR UPDATE")
+                .list();
+        if (orders.isEmpty()) {
+            return orders;
+        }
+        // 2.修改订单状态为已取消
+        getBaseMapper().cancelUnpaid(orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+        // 3.回补库存
+        Map<Long, Integer> counts = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.summingInt(o -> 1)));
+        seckillVoucherMapper.increaseStockBatch(counts);
+        return orders;
     }
 
     /*
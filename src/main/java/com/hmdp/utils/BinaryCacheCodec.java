@@ -0,0 +1,233 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.util.ClassUtil;
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 紧凑的二进制格式，不写字段名，读取时直接生成目标类型，不经过中间的JSONObject
+ * 格式：版本号(1字节) 标记(1字节，bit0为压缩) 内容
+ * 内容：过期时间 重建耗时 字段结构的哈希 按字段名排序的各字段（1字节是否为null + 值）
+ * 内容超过 cache.codec.compress-threshold 字节时用Deflater压缩，压缩后没有变小则不压缩；
+ * 实体类增删字段后结构哈希不一致，旧数据按未命中处理；格式本身变化时升级版本号，并保留旧版本的解码
+ */
+@Slf4j
+@Component
+public class BinaryCacheCodec implements CacheCodec {
+
+    //当前格式的版本号，不能与JSON的第一个字节 { 相同
+    private static final byte VERSION = 1;
+
+    private static final byte FLAG_COMPRESSED = 1;
+
+    @Value("${cache.codec.compress-threshold:1024}")
+    private int compressThreshold;
+
+    //类型 -> 字段结构
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    //一个类型参与编码的字段：非static、非transient，包括父类的字段，按字段名排序
+    private static class Schema {
+        private final Field[] fields;
+        private final int hash;
+
+        private Schema(Class<?> type) {
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    list.add(field);
+                }
+            }
+            list.sort(Comparator.comparing(Field::getName));
+            this.fields = list.toArray(new Field[0]);
+            int h = type.getName().hashCode();
+            for (Field field : fields) {
+                h = 31 * h + field.getName().hashCode();
+                h = 31 * h + field.getType().getName().hashCode();
+            }
+            this.hash = h;
+        }
+    }
+
+    private Schema schemaOf(Class<?> type) {
+        return schemas.computeIfAbsent(type, Schema::new);
+    }
+
+    @Override
+    public String name() {
+        return "binary";
+    }
+
+    @Override
+    public boolean canDecode(byte[] bytes) {
+        return bytes[0] == VERSION;
+    }
+
+    @Override
+    public byte[] encode(RedisData redisData) {
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(content);
+            writeDateTime(out, redisData.getExpireTime());
+            out.writeLong(redisData.getRebuildCostMs() == null ? -1 : redisData.getRebuildCostMs());
+            Object data = redisData.getData();
+            Schema schema = schemaOf(data.getClass());
+            out.writeInt(schema.hash);
+            for (Field field : schema.fields) {
+                writeValue(out, field, field.get(data));
+            }
+            out.flush();
+            byte flags = 0;
+            byte[] body = content.toByteArray();
+            if (body.length > compressThreshold) {
+                byte[] compressed = deflate(body);
+                if (compressed.length < body.length) {
+                    body = compressed;
+                    flags |= FLAG_COMPRESSED;
+                }
+            }
+            byte[] bytes = new byte[body.length + 2];
+            bytes[0] = VERSION;
+            bytes[1] = flags;
+            System.arraycopy(body, 0, bytes, 2, body.length);
+            return bytes;
+        } catch (IOException | IllegalAccessException e) {
+            throw new IllegalStateException("缓存数据编码失败：" + redisData.getData().getClass(), e);
+        }
+    }
+
+    @Override
+    public RedisData decode(byte[] bytes, Class<?> type) {
+        if (bytes.length < 2) {
+            log.warn("缓存数据不完整，按未命中处理：{}", type.getName());
+            return null;
+        }
+        InputStream body = new ByteArrayInputStream(bytes, 2, bytes.length - 2);
+        if ((bytes[1] & FLAG_COMPRESSED) != 0) {
+            body = new InflaterInputStream(body);
+        }
+        try (DataInputStream in = new DataInputStream(body)) {
+            RedisData redisData = new RedisData();
+            redisData.setExpireTime(readDateTime(in));
+            long rebuildCostMs = in.readLong();
+            redisData.setRebuildCostMs(rebuildCostMs < 0 ? null : rebuildCostMs);
+            Schema schema = schemaOf(type);
+            if (in.readInt() != schema.hash) {
+                log.debug("缓存数据结构与{}不一致，按未命中处理", type.getName());
+                return null;
+            }
+            Object data = type.getDeclaredConstructor().newInstance();
+            for (Field field : schema.fields) {
+                field.set(data, readValue(in, field));
+            }
+            redisData.setData(data);
+            return redisData;
+        } catch (IOException | ReflectiveOperationException | RuntimeException e) {
+            // 数据损坏或者截断，按未命中处理，重新查库后覆盖
+            log.warn("缓存数据解码失败，按未命中处理：{}，{}", type.getName(), e.toString());
+            return null;
+        }
+    }
+
+    private static byte[] deflate(byte[] body) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+            out.write(body);
+        } finally {
+            deflater.end();
+        }
+        return compressed.toByteArray();
+    }
+
+    //LocalDateTime按UTC转换为秒和纳秒，与时区无关
+    private static void writeDateTime(DataOutputStream out, LocalDateTime time) throws IOException {
+        out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(time.getNano());
+    }
+
+    private static LocalDateTime readDateTime(DataInputStream in) throws IOException {
+        long seconds = in.readLong();
+        return LocalDateTime.ofEpochSecond(seconds, in.readInt(), ZoneOffset.UTC);
+    }
+
+    //常用类型直接写二进制，其它简单类型写成字符串，集合和对象写成JSON
+    private static void writeValue(DataOutputStream out, Field field, Object value) throws IOException {
+        Class<?> type = field.getType();
+        if (value == null) {
+            out.writeBoolean(false);
+            return;
+        }
+        out.writeBoolean(true);
+        if (type == Long.class || type == long.class) {
+            out.writeLong((Long) value);
+        } else if (type == Integer.class || type == int.class) {
+            out.writeInt((Integer) value);
+        } else if (type == Double.class || type == double.class) {
+            out.writeDouble((Double) value);
+        } else if (type == Boolean.class || type == boolean.class) {
+            out.writeBoolean((Boolean) value);
+        } else if (type == LocalDateTime.class) {
+            writeDateTime(out, (LocalDateTime) value);
+        } else {
+            String str = ClassUtil.isSimpleValueType(type) ? Convert.toStr(value) : JSONUtil.toJsonStr(value);
+            byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static Object readValue(DataInputStream in, Field field) throws IOException {
+        Class<?> type = field.getType();
+        if (!in.readBoolean()) {
+            return null;
+        }
+        if (type == Long.class || type == long.class) {
+            return in.readLong();
+        } else if (type == Integer.class || type == int.class) {
+            return in.readInt();
+        } else if (type == Double.class || type == double.class) {
+            return in.readDouble();
+        } else if (type == Boolean.class || type == boolean.class) {
+            return in.readBoolean();
+        } else if (type == LocalDateTime.class) {
+            return readDateTime(in);
+        }
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        String str = new String(bytes, StandardCharsets.UTF_8);
+        if (type == String.class) {
+            return str;
+        }
+        return ClassUtil.isSimpleValueType(type) ? Convert.convert(type, str)
+                : JSONUtil.toBean(str, field.getGenericType(), false);
+    }
+}
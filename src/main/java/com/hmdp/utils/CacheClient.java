@@ -1,121 +1,661 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.util.RandomUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
+/**
+ * 缓存工具：Redis（L2）前面加一层JVM本地缓存（L1）
+ * L1按容量和存活时间淘汰，保存反序列化后的对象，热点数据不再访问Redis、不再解析JSON；
+ * 通过delete删除缓存时，用Redis发布订阅通知所有实例删除各自的L1；
+ * 缓存未命中时同一个key的并发查库在实例内合并为一次（single-flight），实例之间再用Redis互斥锁协调；
+ * 逻辑过期的数据按 cache.codec 选择的CacheCodec编码后写入，读取时按格式自动选择解码
+ */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
+
+    //L1分段数，每段一把锁，减少热点读之间的锁竞争
+    private static final int LOCAL_SEGMENTS = 16;
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private final IdBloomFilter idBloomFilter;
+
+    private final CacheRebuilder cacheRebuilder;
+
+    private final List<CacheCodec> codecs;
+
+    //写入逻辑过期数据使用的编码：binary 或 json
+    @Value("${cache.codec.format:binary}")
+    private String codecFormat;
+
+    private CacheCodec writeCodec;
+
+    @Value("${cache.local.enabled:true}")
+    private boolean localEnabled;
+
+    //L1最多缓存的key数量
+    @Value("${cache.local.capacity:1000}")
+    private int localCapacity;
+
+    //L1中的数据最多存活多久，收不到删除通知时也只会在这段时间内读到旧数据
+    @Value("${cache.local.ttl-ms:60000}")
+    private long localTtlMs;
+
+    //没有拿到互斥锁时，每隔多久重新读一次Redis
+    @Value("${cache.mutex.retry-interval-ms:50}")
+    private long mutexRetryIntervalMs;
+
+    //最多重试几次，之后不再等待其它实例，直接查库
+    @Value("${cache.mutex.max-retries:20}")
+    private int mutexMaxRetries;
+
+    //逻辑过期的数据按XFetch算法提前刷新：剩余时间 <= 重建耗时 * beta * -ln(随机数) 时触发后台重建
+    @Value("${cache.xfetch.enabled:true}")
+    private boolean xfetchEnabled;
+
+    //大于1时更早开始刷新
+    @Value("${cache.xfetch.beta:1.0}")
+    private double xfetchBeta;
+
+    //没有记录重建耗时的数据（如预热写入的）按这个耗时计算
+    @Value("${cache.xfetch.default-cost-ms:100}")
+    private long xfetchDefaultCostMs;
+
+    //正在进行的数据库加载：缓存key -> 加载结果，同一个key的并发未命中共享同一次加载
+    private final Map<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+
+    private final List<LRUCache<String, LocalEntry>> localCaches = new ArrayList<>(LOCAL_SEGMENTS);
+
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder localMisses = new LongAdder();
+    private final LongAdder redisHits = new LongAdder();
+    private final LongAdder redisMisses = new LongAdder();
+    private final LongAdder dbLoads = new LongAdder();
+    private final LongAdder sharedLoads = new LongAdder();
+    private final LongAdder earlyRefreshes = new LongAdder();
+
+    //L1中的一个值，value为null表示空值；逻辑过期的数据同时保存过期时间和重建耗时
+    private static class LocalEntry {
+        private final Object value;
+        private final LocalDateTime expireTime;
+        private final Long rebuildCostMs;
+
+        private LocalEntry(Object value, LocalDateTime expireTime, Long rebuildCostMs) {
+            this.value = value;
+            this.expireTime = expireTime;
+            this.rebuildCostMs = rebuildCostMs;
+        }
+    }
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer,
+                       IdBloomFilter idBloomFilter, CacheRebuilder cacheRebuilder, List<CacheCodec> codecs) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.idBloomFilter = idBloomFilter;
+        this.cacheRebuilder = cacheRebuilder;
+        this.codecs = codecs;
     }
 
+    @PostConstruct
+    private void init() {
+        int segmentCapacity = Math.max(1, localCapacity / LOCAL_SEGMENTS);
+        for (int i = 0; i < LOCAL_SEGMENTS; i++) {
+            localCaches.add(new LRUCache<>(segmentCapacity, localTtlMs));
+        }
+        listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        writeCodec = codecs.stream().filter(codec -> codec.name().equals(codecFormat)).findFirst()
+                .orElseThrow(() -> new IllegalStateException("不支持的缓存编码：" + codecFormat));
+    }
+
+    //外部直接写入缓存时，其它实例L1中可能还有旧值，需要通知删除
     public void set(String key, Object value, Long time, TimeUnit timeUnit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, timeUnit);
+        writeRedis(key, value, time, timeUnit);
+        evictLocal(key);
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit timeUnit) {
+        writeWithLogicalExpire(key, value, time, timeUnit, null);
+        evictLocal(key);
+    }
+
+    //查询流程内部的回写：未命中时各实例L1中没有这个key，逻辑过期重建时各实例L1中的数据也已经过期，不需要通知
+    private void writeRedis(String key, Object value, Long time, TimeUnit timeUnit) {
+        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, timeUnit);
+    }
+
+    private void writeWithLogicalExpire(String key, Object value, Long time, TimeUnit timeUnit, Long rebuildCostMs) {
+        byte[] bytes = encode(value, LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)), rebuildCostMs);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.stringCommands().set(rawKey(key), bytes));
+    }
+
+    private byte[] encode(Object value, LocalDateTime expireTime, Long rebuildCostMs) {
         RedisData redisData = new RedisData();
         redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        redisData.setExpireTime(expireTime);
+        redisData.setRebuildCostMs(rebuildCostMs);
+        return writeCodec.encode(redisData);
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    //逻辑过期的数据按编码读取，不经过StringRedisTemplate的字符串转换
+    private byte[] getRaw(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(rawKey(key)));
+    }
+
+    private List<byte[]> multiGetRaw(List<String> keys) {
+        byte[][] rawKeys = new byte[keys.size()][];
+        for (int i = 0; i < rawKeys.length; i++) {
+            rawKeys[i] = rawKey(keys.get(i));
+        }
+        return stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection ->
+                connection.stringCommands().mGet(rawKeys));
+    }
+
+    //按第一个字节选择解码器，无法解码时返回null，按未命中处理
+    private RedisData decode(String key, byte[] value, Class<?> type) {
+        for (CacheCodec codec : codecs) {
+            if (codec.canDecode(value)) {
+                return codec.decode(value, type);
+            }
+        }
+        log.warn("无法识别的缓存数据格式：{}", key);
+        return null;
+    }
+
+    /**
+     * 删除缓存，并通知所有实例删除L1
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        evictLocal(key);
+    }
+
+    /**
+     * 各级缓存的命中和未命中次数
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> local = new LinkedHashMap<>();
+        local.put("hits", localHits.sum());
+        local.put("misses", localMisses.sum());
+        local.put("size", localCaches.stream().mapToInt(LRUCache::size).sum());
+        Map<String, Object> redis = new LinkedHashMap<>();
+        redis.put("hits", redisHits.sum());
+        redis.put("misses", redisMisses.sum());
+        Map<String, Object> singleFlight = new LinkedHashMap<>();
+        singleFlight.put("loads", dbLoads.sum());
+        singleFlight.put("shared", sharedLoads.sum());
+        singleFlight.put("inFlight", inFlightLoads.size());
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("local", local);
+        stats.put("redis", redis);
+        stats.put("singleFlight", singleFlight);
+        stats.put("rebuild", cacheRebuilder.stats());
+        stats.put("earlyRefreshes", earlyRefreshes.sum());
+        return stats;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        removeLocal(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    private LRUCache<String, LocalEntry> localCache(String key) {
+        return localCaches.get(Math.floorMod(key.hashCode(), LOCAL_SEGMENTS));
+    }
+
+    private LocalEntry getLocal(String key) {
+        if (!localEnabled) {
+            return null;
+        }
+        // 不刷新最后访问时间，L1的TTL从写入时开始计算，热点key也会按时过期
+        return localCache(key).get(key, false);
+    }
+
+    private void putLocal(String key, Object value, LocalDateTime expireTime) {
+        putLocal(key, value, expireTime, null);
+    }
+
+    private void putLocal(String key, Object value, LocalDateTime expireTime, Long rebuildCostMs) {
+        if (localEnabled) {
+            localCache(key).put(key, new LocalEntry(value, expireTime, rebuildCostMs));
+        }
+    }
+
+    //XFetch：随机数越小提前量越大，重建越慢的数据越早开始刷新，同一批写入的key的刷新时间因此被打散
+    private boolean shouldRefreshEarly(LocalDateTime expireTime, Long rebuildCostMs) {
+        if (!xfetchEnabled) {
+            return false;
+        }
+        long cost = rebuildCostMs == null || rebuildCostMs <= 0 ? xfetchDefaultCostMs : rebuildCostMs;
+        double gap = cost * xfetchBeta * -Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        return Duration.between(LocalDateTime.now(), expireTime).toMillis() <= gap;
+    }
+
+    private void removeLocal(String key) {
+        if (localEnabled) {
+            localCache(key).remove(key);
+        }
+    }
+
+    //删除本实例的L1并广播，其它实例收到后删除各自的L1
+    private void evictLocal(String key) {
+        removeLocal(key);
+        if (localEnabled) {
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+        }
+    }
+
+    /**
+     * 同一个key同一时刻只有一个线程执行loader，其它线程等待并共享它的结果或异常
+     * loader抛出Error时同样完成future并移除，等待的线程不会一直阻塞
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R loadOnce(String key, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlightLoads.putIfAbsent(key, future);
+        if (running != null) {
+            sharedLoads.increment();
+            try {
+                return (R) running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+        }
+        dbLoads.increment();
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(key, future);
+        }
     }
 
     public <R, ID> R queryWithPassThrough(String prefix, ID id, Class<R> type, Function<ID, R> dbFallback
                                             , Long time, TimeUnit timeUnit){
+        //布隆过滤器判断id一定不存在时，不再查缓存和数据库
+        if(!idBloomFilter.mightContain(prefix, id)){
+            return null;
+        }
         String key = prefix + id;
+        //先查L1，空值也会缓存在L1中
+        LocalEntry entry = getLocal(key);
+        if(entry != null){
+            localHits.increment();
+            return type.cast(entry.value);
+        }
+        localMisses.increment();
+
         String json = stringRedisTemplate.opsForValue().get(key);
 
         if(StrUtil.isNotBlank(json)){
-            return JSONUtil.toBean(json, type);
+            redisHits.increment();
+            R r = JSONUtil.toBean(json, type);
+            putLocal(key, r, null);
+            return r;
         }
 
         //shopJson == ""
         if(json != null){
+            redisHits.increment();
+            putLocal(key, null, null);
             return null;
         }
+        redisMisses.increment();
 
-        R r = dbFallback.apply(id);
+        //同一个key的并发未命中只查一次库
+        return loadOnce(key, () -> {
+            R r = dbFallback.apply(id);
+
+            if(r == null){
+                stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
+                putLocal(key, null, null);
+                return null;
+            }
 
-        if(r == null){
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
+            this.writeRedis(key,r,time,timeUnit);
+            putLocal(key, r, null);
+            return r;
+        });
+    }
+
+    /**
+     * 用互斥锁解决缓存击穿：实例内先合并为一次加载，只有这一个线程去竞争Redis互斥锁，
+     * 没拿到锁时等待其它实例写回缓存，而不是每个请求线程各自休眠重试
+     */
+    public <R, ID> R queryWithMutex(String prefix, ID id, Class<R> type, Function<ID, R> dbFallback
+                                            , Long time, TimeUnit timeUnit){
+        if(!idBloomFilter.mightContain(prefix, id)){
             return null;
         }
+        String key = prefix + id;
+        LocalEntry entry = getLocal(key);
+        if(entry != null){
+            localHits.increment();
+            return type.cast(entry.value);
+        }
+        localMisses.increment();
+
+        String json = stringRedisTemplate.opsForValue().get(key);
+        if(json != null){
+            redisHits.increment();
+            return cachedValue(key, json, type);
+        }
+        redisMisses.increment();
 
-        this.set(key,r,time,timeUnit);
+        return loadOnce(key, () -> loadWithMutex(key, id, type, dbFallback, time, timeUnit));
+    }
 
+    //缓存中的值或空值标记，写入L1后返回
+    private <R> R cachedValue(String key, String json, Class<R> type) {
+        R r = StrUtil.isBlank(json) ? null : JSONUtil.toBean(json, type);
+        putLocal(key, r, null);
         return r;
     }
 
-    private static final ExecutorService CACHE_REBUILDER_EXECUTOR = Executors.newFixedThreadPool(10);
+    private <R, ID> R loadWithMutex(String key, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                    Long time, TimeUnit timeUnit) {
+        String lockKey = CacheRebuilder.lockKey(key);
+        for (int i = 0; i <= mutexMaxRetries; i++) {
+            String token = cacheRebuilder.tryLock(lockKey);
+            if (token != null) {
+                try {
+                    // 拿到锁后再查一次，其它实例可能刚刚写回
+                    String json = stringRedisTemplate.opsForValue().get(key);
+                    if (json != null) {
+                        return cachedValue(key, json, type);
+                    }
+                    return loadAndWrite(key, id, dbFallback, time, timeUnit);
+                } finally {
+                    cacheRebuilder.unLock(lockKey, token);
+                }
+            }
+            // 其它实例正在查库，等待后重新读缓存
+            try {
+                Thread.sleep(mutexRetryIntervalMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待缓存重建时被中断：" + key, e);
+            }
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if (json != null) {
+                return cachedValue(key, json, type);
+            }
+        }
+        log.warn("等待互斥锁超时，直接查询数据库：{}", key);
+        return loadAndWrite(key, id, dbFallback, time, timeUnit);
+    }
+
+    //查库并写回，过期时间加上随机值，避免同一批key同时过期
+    private <R, ID> R loadAndWrite(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
+        R r = dbFallback.apply(id);
+        if (r == null) {
+            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            putLocal(key, null, null);
+            return null;
+        }
+        writeRedis(key, r, time + RandomUtil.randomLong(0, 20), timeUnit);
+        putLocal(key, r, null);
+        return r;
+    }
 
     public <R, ID> R queryWithLogicalExpire(String prefix, ID id, Class<R> type, Function<ID, R> dbFallback
                                             , Long time, TimeUnit timeUnit){
+        //布隆过滤器判断id一定不存在时，不再查缓存
+        if(!idBloomFilter.mightContain(prefix, id)){
+            return null;
+        }
         String key = prefix + id;
+        // 0.先查L1，L1中逻辑过期或者需要提前刷新的数据按未命中处理，由下面的流程判断Redis中是否已经刷新
+        LocalEntry entry = getLocal(key);
+        if(entry != null && entry.expireTime.isAfter(LocalDateTime.now())
+                && !shouldRefreshEarly(entry.expireTime, entry.rebuildCostMs)){
+            localHits.increment();
+            return type.cast(entry.value);
+        }
+        localMisses.increment();
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] value = getRaw(key);
         // 2.判断是否存在
-        if(StrUtil.isBlank(json)){
+        if(value == null || value.length == 0){
             // 3.不存在，直接返回
+            redisMisses.increment();
             return null;
         }
-        // 4.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(),type);
+        redisHits.increment();
+        // 4.命中，解码为对象；数据结构已经变化或者已损坏的数据无法使用，直接查库重建
+        RedisData redisData = decode(key, value, type);
+        if(redisData == null){
+            return loadOnce(key, () -> loadWithLogicalExpire(key, id, dbFallback, time, timeUnit));
+        }
+        R r = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
         // 5.判断是否过期
         if(expireTime.isAfter(LocalDateTime.now())){
-            // 5.1.未过期，直接返回店铺信息
+            // 5.1.未过期，放入L1；接近过期时按概率提前在后台重建，仍然直接返回店铺信息
+            putLocal(key, r, expireTime, redisData.getRebuildCostMs());
+            if(shouldRefreshEarly(expireTime, redisData.getRebuildCostMs())){
+                earlyRefreshes.increment();
+                rebuild(key, id, dbFallback, time, timeUnit);
+            }
             return r;
         }
         // 5.2.已过期，需要缓存重建
-        // 6.缓存重建
-        // 6.1.获取互斥锁
-        String lockKey = CACHE_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        // 6.2.判断是否获取锁成功
-        if(isLock){
-
-            CACHE_REBUILDER_EXECUTOR.execute(() -> {
-
-                try{
-                    //重建缓存
-                    R r1 = dbFallback.apply(id);
-                    this.setWithLogicalExpire(key, r1, time, timeUnit);
-                } catch (Exception e){
-                    throw new RuntimeException(e);
-                } finally {
-                    unLock(lockKey);
-                }
-            });
-        }
+        // 6.提交异步重建，获取互斥锁、去重和超时由cacheRebuilder处理
+        rebuild(key, id, dbFallback, time, timeUnit);
 
-        // 6.4.返回过期的商铺信息
+        // 7.返回过期的商铺信息
         return r;
     }
 
-    private boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key,"1",LOCK_SHOP_TTL,TimeUnit.MINUTES);
-        return BooleanUtil.isTrue(flag);
+    private <R, ID> R loadWithLogicalExpire(String key, ID id, Function<ID, R> dbFallback,
+                                            Long time, TimeUnit timeUnit) {
+        long begin = System.currentTimeMillis();
+        R r = dbFallback.apply(id);
+        if (r == null) {
+            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            return null;
+        }
+        this.writeWithLogicalExpire(key, r, time, timeUnit, System.currentTimeMillis() - begin);
+        return r;
     }
 
-    private void unLock(String key){
-        stringRedisTemplate.delete(key);
+    //异步重建一个key，记录查库耗时；锁仍然属于本任务时才写回
+    private <R, ID> void rebuild(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
+        cacheRebuilder.submit(key, token -> {
+            long begin = System.currentTimeMillis();
+            R r = dbFallback.apply(id);
+            if (CacheRebuilder.isCancelled()) {
+                return;
+            }
+            // 数据已被删除时写入空值
+            byte[] bytes = r == null ? new byte[0]
+                    : encode(r, LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)), System.currentTimeMillis() - begin);
+            cacheRebuilder.writeIfOwner(token, Collections.singletonMap(key, bytes));
+        });
+    }
+
+    /**
+     * 批量查询，与queryWithLogicalExpire使用相同的缓存格式
+     * 一次MGET读取所有key，未命中的id一次批量查库，查到的和空值标记在一个pipeline中写回；
+     * 逻辑过期的数据先返回旧值，获取到锁的id合并为一次异步批量重建
+     * @param batchDbFallback 参数为未命中的id，返回 id -> 实体，不存在的id不放入结果
+     * @return 与ids顺序一致的列表，不存在的id对应位置为null
+     */
+    public <R, ID> List<R> queryBatch(String prefix, List<ID> ids, Class<R> type,
+                                      Function<List<ID>, Map<ID, R>> batchDbFallback, Long time, TimeUnit timeUnit){
+        Map<ID, R> found = new HashMap<>(ids.size());
+        LocalDateTime now = LocalDateTime.now();
+        // 1.布隆过滤器拦截不存在的id，再查L1
+        Set<ID> pending = new LinkedHashSet<>();
+        for (ID id : ids) {
+            if (found.containsKey(id) || pending.contains(id) || !idBloomFilter.mightContain(prefix, id)) {
+                continue;
+            }
+            LocalEntry entry = getLocal(prefix + id);
+            if (entry != null && entry.expireTime.isAfter(now)
+                    && !shouldRefreshEarly(entry.expireTime, entry.rebuildCostMs)) {
+                localHits.increment();
+                found.put(id, type.cast(entry.value));
+            } else {
+                localMisses.increment();
+                pending.add(id);
+            }
+        }
+        if (!pending.isEmpty()) {
+            // 2.MGET
+            List<ID> pendingIds = new ArrayList<>(pending);
+            List<String> keys = new ArrayList<>(pendingIds.size());
+            pendingIds.forEach(id -> keys.add(prefix + id));
+            List<byte[]> values = multiGetRaw(keys);
+            List<ID> misses = new ArrayList<>();
+            List<ID> expired = new ArrayList<>();
+            for (int i = 0; i < pendingIds.size(); i++) {
+                ID id = pendingIds.get(i);
+                byte[] value = values == null ? null : values.get(i);
+                if (value == null) {
+                    redisMisses.increment();
+                    misses.add(id);
+                    continue;
+                }
+                redisHits.increment();
+                if (value.length == 0) {
+                    // 空值标记
+                    continue;
+                }
+                RedisData redisData = decode(keys.get(i), value, type);
+                if (redisData == null) {
+                    misses.add(id);
+                    continue;
+                }
+                R r = type.cast(redisData.getData());
+                found.put(id, r);
+                if (!redisData.getExpireTime().isAfter(now)) {
+                    expired.add(id);
+                    continue;
+                }
+                putLocal(keys.get(i), r, redisData.getExpireTime(), redisData.getRebuildCostMs());
+                if (shouldRefreshEarly(redisData.getExpireTime(), redisData.getRebuildCostMs())) {
+                    earlyRefreshes.increment();
+                    expired.add(id);
+                }
+            }
+            // 3.逻辑过期和需要提前刷新的id异步批量重建
+            if (!expired.isEmpty()) {
+                rebuildBatch(prefix, expired, batchDbFallback, time, timeUnit);
+            }
+            // 4.未命中的id一次查库，一个pipeline写回
+            if (!misses.isEmpty()) {
+                long begin = System.currentTimeMillis();
+                Map<ID, R> loaded = batchDbFallback.apply(misses);
+                writeBatch(prefix, misses, loaded, time, timeUnit, System.currentTimeMillis() - begin);
+                found.putAll(loaded);
+            }
+        }
+        // 5.按输入顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        ids.forEach(id -> result.add(found.get(id)));
+        return result;
+    }
+
+    //pipeline写回：查到的写逻辑过期数据，没查到的写空值标记
+    private <R, ID> void writeBatch(String prefix, List<ID> ids, Map<ID, R> loaded, Long time, TimeUnit timeUnit,
+                                    long rebuildCostMs) {
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : ids) {
+                R r = loaded.get(id);
+                if (r == null) {
+                    connection.stringCommands().setEx(rawKey(prefix + id),
+                            TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL), new byte[0]);
+                    continue;
+                }
+                RedisData redisData = new RedisData();
+                redisData.setData(r);
+                redisData.setExpireTime(expireTime);
+                redisData.setRebuildCostMs(rebuildCostMs);
+                connection.stringCommands().set(rawKey(prefix + id), writeCodec.encode(redisData));
+            }
+            return null;
+        });
+        ids.forEach(id -> putLocal(prefix + id, loaded.get(id), expireTime, rebuildCostMs));
+    }
+
+    //需要重建的key一起提交，没有在重建中的id合并为一次批量查库
+    private <R, ID> void rebuildBatch(String prefix, List<ID> ids, Function<List<ID>, Map<ID, R>> batchDbFallback,
+                                      Long time, TimeUnit timeUnit) {
+        Map<String, ID> idByKey = new LinkedHashMap<>(ids.size());
+        ids.forEach(id -> idByKey.put(prefix + id, id));
+        cacheRebuilder.submit(new ArrayList<>(idByKey.keySet()), (keys, token) -> {
+            List<ID> accepted = new ArrayList<>(keys.size());
+            keys.forEach(key -> accepted.add(idByKey.get(key)));
+            long begin = System.currentTimeMillis();
+            Map<ID, R> loaded = batchDbFallback.apply(accepted);
+            if (CacheRebuilder.isCancelled()) {
+                return;
+            }
+            // 锁仍然属于本任务的key才写回，全部写回时更新本实例的L1
+            long rebuildCostMs = System.currentTimeMillis() - begin;
+            LocalDateTime expireTime = LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time));
+            Map<String, byte[]> values = new LinkedHashMap<>(accepted.size());
+            for (ID id : accepted) {
+                R r = loaded.get(id);
+                values.put(prefix + id, r == null ? new byte[0] : encode(r, expireTime, rebuildCostMs));
+            }
+            if (cacheRebuilder.writeIfOwner(token, values) == values.size()) {
+                accepted.forEach(id -> putLocal(prefix + id, loaded.get(id), expireTime, rebuildCostMs));
+            }
+        });
     }
 }
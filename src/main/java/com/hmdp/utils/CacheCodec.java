@@ -0,0 +1,37 @@
+package com.hmdp.utils;
+
+/**
+ * 逻辑过期缓存值（RedisData）的编解码
+ * 由 cache.codec 选择写入使用的实现：json 或 binary（默认）；读取时按第一个字节判断格式，
+ * 两种格式的数据可以同时存在于Redis中，切换格式后旧数据仍然能读取，过期重建后换成新格式
+ */
+public interface CacheCodec {
+
+    /**
+     * 实现的名称，与 cache.codec 的取值对应
+     * @return 名称
+     */
+    String name();
+
+    /**
+     * 是否能解码这个值
+     * @param bytes Redis中的值，不为空
+     * @return 第一个字节是否为本格式的标记
+     */
+    boolean canDecode(byte[] bytes);
+
+    /**
+     * 编码
+     * @param redisData 过期时间、重建耗时和数据，数据不为null
+     * @return 写入Redis的值
+     */
+    byte[] encode(RedisData redisData);
+
+    /**
+     * 解码
+     * @param bytes Redis中的值
+     * @param type 数据的类型
+     * @return data已经转换为type的RedisData；数据结构与type不一致或者数据损坏时返回null，按未命中处理
+     */
+    RedisData decode(byte[] bytes, Class<?> type);
+}
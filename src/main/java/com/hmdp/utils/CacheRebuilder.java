@@ -0,0 +1,301 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import cn.hutool.core.util.BooleanUtil;
+import io.netty.util.HashedWheelTimer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.CACHE_LOCK_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
+import static com.hmdp.utils.RedisConstants.LOCK_SHOP_TTL;
+
+/**
+ * 逻辑过期缓存的异步重建
+ * 线程池队列有界，队列满时放弃本次重建，继续返回旧数据；
+ * 同一个key在本实例排队或执行中时不重复提交，实例之间用 lock:{缓存key} 互斥；
+ * 重建超过timeout-ms时中断任务并释放锁，下一次读到过期数据时重新提交；
+ * 锁的值是每次提交唯一的标示，重建任务通过writeIfOwner写回，锁已经不属于自己时不写，超时的旧任务不会覆盖新的重建结果
+ */
+@Slf4j
+@Component
+public class CacheRebuilder {
+
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+
+    private static final DefaultRedisScript<Long> WRITE_SCRIPT;
+
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+        WRITE_SCRIPT = new DefaultRedisScript<>();
+        WRITE_SCRIPT.setLocation(new ClassPathResource("rebuild.lua"));
+        WRITE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${cache.rebuild.threads:10}")
+    private int threads;
+
+    @Value("${cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+
+    @Value("${cache.rebuild.timeout-ms:3000}")
+    private long timeoutMs;
+
+    private ThreadPoolExecutor rebuildExecutor;
+
+    //超时检查，到期时任务还没结束就中断
+    private final HashedWheelTimer timeoutWheel = new HashedWheelTimer(
+            ThreadFactoryBuilder.create().setNamePrefix("cache-rebuild-timeout-").setDaemon(true).build(),
+            100, TimeUnit.MILLISECONDS);
+
+    //本实例正在排队或执行的缓存key
+    private final Map<String, Boolean> pending = new ConcurrentHashMap<>();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder lockBusy = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder fencedWrites = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+
+    public CacheRebuilder(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        rebuildExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                ThreadFactoryBuilder.create().setNamePrefix("cache-rebuild-").build(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    private void destroy() {
+        rebuildExecutor.shutdownNow();
+        timeoutWheel.stop();
+    }
+
+    /**
+     * 提交一个key的重建，已经在重建中或队列已满时直接返回
+     * @param rebuild 参数为锁的标示，写回时传给writeIfOwner
+     */
+    public void submit(String key, Consumer<String> rebuild) {
+        submit(Collections.singletonList(key), (keys, token) -> rebuild.accept(token));
+    }
+
+    /**
+     * 提交一批key的重建：过滤掉本实例已在重建、或者其它实例持有锁的key，剩下的key交给一次rebuild处理
+     * @param rebuild 参数为真正需要重建的key和锁的标示
+     */
+    public void submit(List<String> keys, BiConsumer<List<String>, String> rebuild) {
+        String token = UUID.randomUUID().toString(true);
+        List<String> accepted = new ArrayList<>(keys.size());
+        try {
+            for (String key : keys) {
+                if (pending.putIfAbsent(key, Boolean.TRUE) != null) {
+                    deduplicated.increment();
+                    continue;
+                }
+                boolean locked = false;
+                try {
+                    locked = tryLock(lockKey(key), token);
+                } finally {
+                    if (!locked) {
+                        pending.remove(key);
+                    }
+                }
+                if (!locked) {
+                    lockBusy.increment();
+                    continue;
+                }
+                accepted.add(key);
+            }
+        } catch (Exception e) {
+            // Redis异常：放弃本次重建，释放已经拿到的锁，调用方继续返回旧数据
+            failures.increment();
+            log.error("获取缓存重建锁失败：" + keys, e);
+            release(accepted, token);
+            return;
+        }
+        if (accepted.isEmpty()) {
+            return;
+        }
+        // 超时和正常结束都会调用release，只有第一次生效
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                release(accepted, token);
+            }
+        };
+        Future<?> future;
+        try {
+            future = rebuildExecutor.submit(() -> {
+                long begin = System.nanoTime();
+                try {
+                    rebuild.accept(accepted, token);
+                    if (!released.get()) {
+                        succeeded.increment();
+                        long cost = System.nanoTime() - begin;
+                        latencyNanos.add(cost);
+                        maxLatencyNanos.accumulate(cost);
+                    }
+                } catch (Exception e) {
+                    // 超时中断导致的异常已经计入timeouts
+                    if (!released.get()) {
+                        failures.increment();
+                        log.error("缓存重建失败：" + accepted, e);
+                    }
+                } finally {
+                    release.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 队列已满，本次不重建，调用方继续返回旧数据
+            rejected.increment();
+            release.run();
+            return;
+        } catch (Exception e) {
+            failures.increment();
+            log.error("提交缓存重建失败：" + accepted, e);
+            release.run();
+            return;
+        }
+        submitted.increment();
+        timeoutWheel.newTimeout(timeout -> {
+            if (!future.isDone() && !released.get()) {
+                timeouts.increment();
+                future.cancel(true);
+                release.run();
+                log.warn("缓存重建超时：{}", accepted);
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 在重建任务中调用：任务已经因为超时被中断时返回true，此时不应再写回缓存
+     */
+    public static boolean isCancelled() {
+        return Thread.currentThread().isInterrupted();
+    }
+
+    public static String lockKey(String key) {
+        return CACHE_LOCK_KEY + key;
+    }
+
+    /**
+     * 重建任务的写回：只写入锁仍由token持有的key，空数组写为空值并设置CACHE_NULL_TTL
+     * @param token submit传给重建任务的锁标示
+     * @param values 缓存key -> 编码后的值
+     * @return 实际写入的key数量
+     */
+    public long writeIfOwner(String token, Map<String, byte[]> values) {
+        List<String> keys = new ArrayList<>(values.size() * 2);
+        Object[] args = new Object[values.size() + 2];
+        args[0] = token.getBytes(StandardCharsets.UTF_8);
+        args[1] = String.valueOf(TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL)).getBytes(StandardCharsets.UTF_8);
+        int i = 2;
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            keys.add(lockKey(entry.getKey()));
+            keys.add(entry.getKey());
+            args[i++] = entry.getValue();
+        }
+        Long written = stringRedisTemplate.execute(WRITE_SCRIPT, RedisSerializer.byteArray(), null, keys, args);
+        long count = written == null ? 0 : written;
+        if (count < values.size()) {
+            fencedWrites.add(values.size() - count);
+            log.warn("缓存重建的锁已经失效，放弃写回{}个key", values.size() - count);
+        }
+        return count;
+    }
+
+    /**
+     * 获取互斥锁，锁的值是一个唯一标示
+     * @return 获取成功时返回标示，释放时传给unLock；锁被占用时返回null
+     */
+    public String tryLock(String lockKey) {
+        String token = UUID.randomUUID().toString(true);
+        return tryLock(lockKey, token) ? token : null;
+    }
+
+    /**
+     * 锁仍然是自己的才删除，锁过期后被其它实例获取时不会误删
+     */
+    public void unLock(String lockKey, String token) {
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(lockKey), token);
+    }
+
+    private boolean tryLock(String lockKey, String token) {
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, token, LOCK_SHOP_TTL, TimeUnit.MINUTES);
+        return BooleanUtil.isTrue(flag);
+    }
+
+    //释放锁并移出pending；释放失败时锁到期后自动失效，pending一定要移除，否则本实例再也不会重建这些key
+    private void release(List<String> keys, String token) {
+        for (String key : keys) {
+            try {
+                unLock(lockKey(key), token);
+            } catch (Exception e) {
+                log.error("释放缓存重建锁失败：" + key, e);
+            } finally {
+                pending.remove(key);
+            }
+        }
+    }
+
+    /**
+     * 队列深度、去重次数、耗时和失败次数
+     */
+    public Map<String, Object> stats() {
+        long count = succeeded.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queueDepth", rebuildExecutor.getQueue().size());
+        stats.put("active", rebuildExecutor.getActiveCount());
+        stats.put("pendingKeys", pending.size());
+        stats.put("submitted", submitted.sum());
+        stats.put("deduplicated", deduplicated.sum());
+        stats.put("lockBusy", lockBusy.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("succeeded", count);
+        stats.put("failures", failures.sum());
+        stats.put("timeouts", timeouts.sum());
+        stats.put("fencedWrites", fencedWrites.sum());
+        stats.put("avgLatencyMs", count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(latencyNanos.sum() / count));
+        stats.put("maxLatencyMs", TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos.get()));
+        return stats;
+    }
+}
@@ -0,0 +1,268 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+
+/**
+ * 防缓存穿透的布隆过滤器，按缓存key前缀（如 cache:shop:）各维护一个，保存该实体所有合法的id
+ * 过滤器在JVM本地，查询时不需要访问Redis；定期从MySQL分段加载全部id重建，
+ * 新增实体时调用add并通过Redis发布订阅通知其它实例。重建完成之前不拦截任何请求
+ */
+@Slf4j
+@Component
+public class IdBloomFilter implements MessageListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    @Value("${bloom.enabled:true}")
+    private boolean enabled;
+
+    //期望的误判率
+    @Value("${bloom.fpp:0.01}")
+    private double fpp;
+
+    //初始容量，重建时按上一次加载的id数量自动扩容
+    @Value("${bloom.expected-insertions:100000}")
+    private long expectedInsertions;
+
+    //重建时每次从数据库加载的id数量
+    @Value("${bloom.chunk-size:1000}")
+    private int chunkSize;
+
+    //前缀 -> 过滤器
+    private final Map<String, Guard> guards = new ConcurrentHashMap<>();
+
+    public IdBloomFilter(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(BLOOM_ADD_CHANNEL));
+    }
+
+    //一个前缀的过滤器：current为正在使用的位图，rebuilding为正在重建的位图，重建期间新增的id两边都写
+    //新增id持有读锁，开始重建和替换位图持有写锁，替换时不会有新增的id只写进了旧位图
+    private static class Guard {
+        //按主键顺序分段加载id：参数为上一段最后一个id，返回之后最多chunkSize个id
+        private final Function<Long, List<Long>> loader;
+        private volatile BitFilter current;
+        private volatile BitFilter rebuilding;
+        private volatile long lastLoaded;
+        private final LongAdder rejected = new LongAdder();
+        private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+
+        private Guard(Function<Long, List<Long>> loader) {
+            this.loader = loader;
+        }
+    }
+
+    //位图布隆过滤器：m = -n*ln(p)/(ln2)^2，k = m/n*ln2，用两个哈希值组合出k个位置
+    private static class BitFilter {
+        private final AtomicLongArray bits;
+        private final long bitSize;
+        private final int hashCount;
+
+        private BitFilter(long expectedInsertions, double fpp) {
+            long n = Math.max(1, expectedInsertions);
+            long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            int words = (int) Math.min(Integer.MAX_VALUE, (m + 63) >>> 6);
+            this.bits = new AtomicLongArray(words);
+            this.bitSize = (long) words << 6;
+            this.hashCount = Math.max(1, (int) Math.round((double) bitSize / n * Math.log(2)));
+        }
+
+        private void put(long id) {
+            long h1 = mix(id);
+            long h2 = mix(h1) | 1;
+            for (int i = 0; i < hashCount; i++) {
+                long index = Math.floorMod(h1 + i * h2, bitSize);
+                int word = (int) (index >>> 6);
+                long mask = 1L << index;
+                long old;
+                do {
+                    old = bits.get(word);
+                    if ((old & mask) != 0) {
+                        break;
+                    }
+                } while (!bits.compareAndSet(word, old, old | mask));
+            }
+        }
+
+        private boolean mightContain(long id) {
+            long h1 = mix(id);
+            long h2 = mix(h1) | 1;
+            for (int i = 0; i < hashCount; i++) {
+                long index = Math.floorMod(h1 + i * h2, bitSize);
+                if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        //SplitMix64的混合函数
+        private static long mix(long z) {
+            z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+            z = (z ^ (z >>> 33)) * 0xc4ceb3f9fe1a85b3L;
+            return z ^ (z >>> 33);
+        }
+    }
+
+    /**
+     * 为一个缓存key前缀注册过滤器，下一次定期重建时加载
+     * @param prefix 缓存key前缀，必须以 : 结尾
+     * @param loader 参数为上一段最后一个id（第一段为0），返回之后按id升序的最多chunkSize个id
+     */
+    public void register(String prefix, Function<Long, List<Long>> loader) {
+        guards.putIfAbsent(prefix, new Guard(loader));
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * id是否可能存在；没有注册、还没有加载完成或者id不是数字时返回true
+     */
+    public boolean mightContain(String prefix, Object id) {
+        Guard guard = guards.get(prefix);
+        if (!enabled || guard == null || !(id instanceof Number)) {
+            return true;
+        }
+        BitFilter filter = guard.current;
+        if (filter == null || filter.mightContain(((Number) id).longValue())) {
+            return true;
+        }
+        guard.rejected.increment();
+        return false;
+    }
+
+    /**
+     * 新增实体后写入过滤器，并通知其它实例
+     */
+    public void add(String prefix, Long id) {
+        addLocal(prefix, id);
+        stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, prefix + id);
+    }
+
+    private void addLocal(String prefix, Long id) {
+        Guard guard = guards.get(prefix);
+        if (guard == null) {
+            return;
+        }
+        guard.swapLock.readLock().lock();
+        try {
+            BitFilter filter = guard.current;
+            if (filter != null) {
+                filter.put(id);
+            }
+            BitFilter rebuilding = guard.rebuilding;
+            if (rebuilding != null) {
+                rebuilding.put(id);
+            }
+        } finally {
+            guard.swapLock.readLock().unlock();
+        }
+    }
+
+    //消息内容为 前缀 + id
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.lastIndexOf(':');
+        try {
+            addLocal(body.substring(0, index + 1), Long.valueOf(body.substring(index + 1)));
+        } catch (NumberFormatException e) {
+            log.warn("忽略无效的布隆过滤器消息：{}", body);
+        }
+    }
+
+    /**
+     * 各过滤器的id数量和拦截次数
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        guards.forEach((prefix, guard) -> {
+            Map<String, Object> stat = new LinkedHashMap<>();
+            stat.put("loaded", guard.current != null);
+            stat.put("ids", guard.lastLoaded);
+            stat.put("rejected", guard.rejected.sum());
+            stats.put(prefix, stat);
+        });
+        return stats;
+    }
+
+    @Scheduled(fixedDelayString = "${bloom.rebuild-interval-ms:3600000}")
+    public void rebuild() {
+        if (!enabled) {
+            return;
+        }
+        guards.forEach((prefix, guard) -> {
+            try {
+                rebuild(prefix, guard);
+            } catch (Exception e) {
+                // 重建失败时继续使用旧的过滤器
+                swap(guard, guard.current, null);
+                log.error("布隆过滤器重建失败：" + prefix, e);
+            }
+        });
+    }
+
+    //按主键分段加载全部id写入新的位图，完成后替换旧的
+    private void rebuild(String prefix, Guard guard) {
+        BitFilter filter = new BitFilter(Math.max(expectedInsertions, guard.lastLoaded * 3 / 2), fpp);
+        swap(guard, guard.current, filter);
+        long lastId = 0;
+        long loaded = 0;
+        while (true) {
+            List<Long> ids = guard.loader.apply(lastId);
+            if (ids == null || ids.isEmpty()) {
+                break;
+            }
+            ids.forEach(filter::put);
+            loaded += ids.size();
+            lastId = ids.get(ids.size() - 1);
+            if (ids.size() < chunkSize) {
+                break;
+            }
+        }
+        swap(guard, filter, null);
+        guard.lastLoaded = loaded;
+        log.info("布隆过滤器已重建：{}，id数量={}", prefix, loaded);
+    }
+
+    private static void swap(Guard guard, BitFilter current, BitFilter rebuilding) {
+        guard.swapLock.writeLock().lock();
+        try {
+            guard.current = current;
+            guard.rebuilding = rebuilding;
+        } finally {
+            guard.swapLock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 原来的JSON格式：整个RedisData序列化为JSON，读取时先解析为RedisData，再把data转换为目标类型
+ */
+@Slf4j
+@Component
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public String name() {
+        return "json";
+    }
+
+    @Override
+    public boolean canDecode(byte[] bytes) {
+        return bytes[0] == '{';
+    }
+
+    @Override
+    public byte[] encode(RedisData redisData) {
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public RedisData decode(byte[] bytes, Class<?> type) {
+        try {
+            RedisData redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+            redisData.setData(JSONUtil.toBean((JSONObject) redisData.getData(), type));
+            return redisData;
+        } catch (RuntimeException e) {
+            // 数据损坏，按未命中处理，重新查库后覆盖
+            log.warn("缓存数据解码失败，按未命中处理：{}，{}", type.getName(), e.toString());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 秒杀订单队列：seckill接口在Redis中完成库存和一人一单校验后，订单经由队列交给后台线程异步写入数据库
+ * 由 seckill.order.queue 选择实现：stream（默认，Redis Stream）或 ring-buffer（进程内环形队列，单机部署和压测用）
+ */
+public interface OrderQueue {
+
+    /**
+     * 订单是否已经由seckill.lua在扣减库存的同一个脚本中写入队列
+     * @return true时seckill接口不再调用publish
+     */
+    boolean isPublishedByScript();
+
+    /**
+     * 写入一个订单，队列满时等待消费者腾出位置
+     * isPublishedByScript为true的实现中订单已经在脚本里写入，seckill接口不会调用，实现为空操作
+     * @param voucherOrder 订单
+     */
+    void publish(VoucherOrder voucherOrder);
+
+    /**
+     * 订单消费是否已经跟不上，为true时seckill接口直接返回繁忙
+     * @param voucherId 优惠券id
+     * @param userId 用户id
+     * @return 是否过载
+     */
+    boolean isOverloaded(Long voucherId, Long userId);
+
+    /**
+     * 队列中还没有处理完的订单的用户，库存对账不能把这些用户当成订单丢失
+     * @param voucherId 优惠券id
+     * @return 用户id
+     */
+    Set<Long> queuedBuyers(Long voucherId);
+
+    /**
+     * 队列的积压情况
+     * @return 监控数据
+     */
+    Map<String, Object> stats();
+}
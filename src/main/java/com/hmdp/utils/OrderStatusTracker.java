@@ -0,0 +1,151 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_KEY;
+
+/**
+ * 秒杀订单的异步处理状态
+ * seckill.lua写入 seckill:status:{userId}:{orderId} = PENDING，消费者建单成功后改为CREATED，转入死信后改为FAILED。
+ * 状态变化通过Redis发布订阅通知所有实例，唤醒正在长轮询这个订单的请求，查询过程不访问MySQL
+ */
+@Slf4j
+@Component
+public class OrderStatusTracker implements MessageListener {
+
+    public static final String PENDING = "PENDING";
+    public static final String CREATED = "CREATED";
+    public static final String FAILED = "FAILED";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    //状态记录的有效期，秒，seckill.lua写入PENDING时使用同样的值
+    @Value("${seckill.order.status-ttl-seconds:1800}")
+    private long statusTtlSeconds;
+
+    //正在长轮询的请求，订单id -> 等待结果
+    private final Map<Long, Set<DeferredResult<Result>>> waiters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_ORDER_STATUS_CHANNEL));
+    }
+
+    public long getStatusTtlSeconds() {
+        return statusTtlSeconds;
+    }
+
+    /**
+     * @return 订单状态，记录不存在（不是该用户的订单或已过期）时返回null
+     */
+    public String getStatus(Long userId, Long orderId) {
+        return stringRedisTemplate.opsForValue().get(statusKey(userId, orderId));
+    }
+
+    /**
+     * 长轮询：订单还在处理中时最多等待timeoutMs，状态变化后立即返回
+     */
+    public DeferredResult<Result> await(Long userId, Long orderId, long timeoutMs) {
+        DeferredResult<Result> result = new DeferredResult<>(timeoutMs);
+        String status = getStatus(userId, orderId);
+        if (!PENDING.equals(status) || timeoutMs <= 0) {
+            result.setResult(toResult(status));
+            return result;
+        }
+        Set<DeferredResult<Result>> set = waiters.computeIfAbsent(orderId, k -> ConcurrentHashMap.newKeySet());
+        set.add(result);
+        result.onTimeout(() -> result.setResult(toResult(getStatus(userId, orderId))));
+        result.onCompletion(() -> {
+            set.remove(result);
+            waiters.computeIfPresent(orderId, (k, v) -> v.isEmpty() ? null : v);
+        });
+        // 注册之前状态可能已经变化，再查一次
+        status = getStatus(userId, orderId);
+        if (!PENDING.equals(status)) {
+            result.setResult(toResult(status));
+        }
+        return result;
+    }
+
+    public void markCreated(List<VoucherOrder> orders) {
+        update(orders, CREATED);
+    }
+
+    public void markFailed(List<VoucherOrder> orders) {
+        update(orders, FAILED);
+    }
+
+    //pipeline批量更新状态，然后一条消息通知所有实例 id1:status,id2:status,...
+    private void update(List<VoucherOrder> orders, String status) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        String message = orders.stream()
+                .map(order -> order.getId() + ":" + status)
+                .collect(Collectors.joining(","));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : orders) {
+                conn.setEx(statusKey(order.getUserId(), order.getId()), statusTtlSeconds, status);
+            }
+            conn.publish(SECKILL_ORDER_STATUS_CHANNEL, message);
+            return null;
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        if (waiters.isEmpty()) {
+            return;
+        }
+        for (String entry : new String(message.getBody(), StandardCharsets.UTF_8).split(",")) {
+            int index = entry.indexOf(':');
+            if (index <= 0) {
+                continue;
+            }
+            Set<DeferredResult<Result>> set = waiters.remove(Long.valueOf(entry.substring(0, index)));
+            if (set != null) {
+                Result result = toResult(entry.substring(index + 1));
+                set.forEach(waiter -> waiter.setResult(result));
+            }
+        }
+    }
+
+    private static Result toResult(String status) {
+        if (StrUtil.isBlank(status)) {
+            return Result.fail("订单不存在");
+        }
+        return Result.ok(status);
+    }
+
+    private static String statusKey(Long userId, Long orderId) {
+        return SECKILL_ORDER_STATUS_KEY + userId + ":" + orderId;
+    }
+}
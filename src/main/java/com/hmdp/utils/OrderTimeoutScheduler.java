@@ -0,0 +1,182 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import io.netty.util.HashedWheelTimer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 未支付订单超时取消
+ * 订单创建后写入ZSET seckill:timeout:order（score为到期时间），同时在本实例的时间轮中登记；
+ * 时间轮到期后批量从ZSET中认领（ZREM成功才算认领到）并取消，多个实例之间不会重复取消。
+ * 实例重启或宕机后时间轮中的任务丢失，由定时扫描认领ZSET中已经过期的任务兜底
+ */
+@Slf4j
+@Component
+public class OrderTimeoutScheduler {
+
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("timeout.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillStockReturner stockReturner;
+
+    //未支付订单的超时时间
+    @Value("${seckill.order.unpaid-timeout-minutes:15}")
+    private long unpaidTimeoutMinutes;
+
+    //每批最多取消的订单数
+    @Value("${seckill.order.timeout-batch-size:500}")
+    private int batchSize;
+
+    //兜底扫描只认领过期超过这个时间的任务，正常情况下它们应该已经被时间轮处理了
+    @Value("${seckill.order.timeout-sweep-grace-ms:5000}")
+    private long sweepGraceMs;
+
+    //时间轮：每100ms一格，只保存订单id，几十万个任务也只占很少的内存
+    private final HashedWheelTimer wheel = new HashedWheelTimer(
+            ThreadFactoryBuilder.create().setNamePrefix("order-timeout-wheel-").build(),
+            100, TimeUnit.MILLISECONDS, 512);
+
+    //时间轮到期的订单id，由取消线程批量处理
+    private final BlockingQueue<Long> dueOrders = new LinkedBlockingQueue<>();
+
+    private final ExecutorService cancelExecutor = Executors.newSingleThreadExecutor(
+            ThreadFactoryBuilder.create().setNamePrefix("order-timeout-cancel-").build());
+
+    @PostConstruct
+    private void init() {
+        cancelExecutor.submit(this::cancelDueOrders);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        wheel.stop();
+        cancelExecutor.shutdownNow();
+    }
+
+    /**
+     * 登记新创建的订单，超时未支付时自动取消
+     */
+    public void schedule(List<VoucherOrder> orders) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        long delayMs = TimeUnit.MINUTES.toMillis(unpaidTimeoutMinutes);
+        double deadline = System.currentTimeMillis() + delayMs;
+        // 先持久化到ZSET，保证实例重启后任务不会丢失
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : orders) {
+                conn.zAdd(SECKILL_TIMEOUT_ORDER_KEY, deadline, order.getId().toString());
+            }
+            return null;
+        });
+        for (VoucherOrder order : orders) {
+            Long orderId = order.getId();
+            wheel.newTimeout(timeout -> dueOrders.add(orderId), delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    //取消线程：攒批后从ZSET中认领，认领到的才取消
+    private void cancelDueOrders() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<Long> orderIds = new ArrayList<>(batchSize);
+                orderIds.add(dueOrders.take());
+                dueOrders.drainTo(orderIds, batchSize - 1);
+                try {
+                    cancel(claim(orderIds));
+                } catch (Exception e) {
+                    // 认领失败的任务还在ZSET中，由兜底扫描处理
+                    log.error("取消超时订单异常", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //ZREM seckill:timeout:order id，返回1表示本实例认领成功
+    private List<Long> claim(List<Long> orderIds) {
+        List<Object> removed = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long orderId : orderIds) {
+                conn.zRem(SECKILL_TIMEOUT_ORDER_KEY, orderId.toString());
+            }
+            return null;
+        });
+        List<Long> claimed = new ArrayList<>(orderIds.size());
+        for (int i = 0; i < orderIds.size(); i++) {
+            if (Long.valueOf(1).equals(removed.get(i))) {
+                claimed.add(orderIds.get(i));
+            }
+        }
+        return claimed;
+    }
+
+    //兜底扫描：认领已经过期、但没有被任何实例的时间轮处理的任务
+    @Scheduled(fixedDelayString = "${seckill.order.timeout-sweep-interval-ms:30000}")
+    public void sweep() {
+        String max = String.valueOf(System.currentTimeMillis() - sweepGraceMs);
+        while (true) {
+            List<?> members = stringRedisTemplate.execute(CLAIM_SCRIPT,
+                    Collections.singletonList(SECKILL_TIMEOUT_ORDER_KEY), max, String.valueOf(batchSize));
+            if (members == null || members.isEmpty()) {
+                return;
+            }
+            cancel(members.stream().map(m -> Long.valueOf(m.toString())).collect(Collectors.toList()));
+            if (members.size() < batchSize) {
+                return;
+            }
+        }
+    }
+
+    //数据库中取消订单并回补库存，然后回补Redis库存、允许用户重新抢购、增加等待室名额、清除售罄标记
+    private void cancel(List<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        List<VoucherOrder> cancelled = voucherOrderService.cancelUnpaidOrders(orderIds);
+        if (cancelled.isEmpty()) {
+            return;
+        }
+        stockReturner.returnOrders(cancelled);
+        log.info("取消超时未支付订单{}个", cancelled.size());
+    }
+}
@@ -0,0 +1,48 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 接口限流，加在controller方法上，由RateLimitInterceptor在进入controller之前校验
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RateLimit {
+
+    /**
+     * 限流器名称，用于统计和Redis key，默认 类名.方法名
+     */
+    String name() default "";
+
+    /**
+     * LOCAL：本实例内的令牌桶；REDIS：所有实例共享的Redis滑动窗口
+     */
+    Mode mode() default Mode.LOCAL;
+
+    /**
+     * 每个窗口内所有用户合计允许的请求数，0表示不限制
+     */
+    long globalLimit() default 0;
+
+    /**
+     * 每个窗口内单个用户允许的请求数，0表示不限制，未登录的请求不做用户限流
+     */
+    long userLimit() default 0;
+
+    /**
+     * 窗口长度，毫秒
+     */
+    long windowMs() default 1000;
+
+    /**
+     * 被拒绝时返回的提示
+     */
+    String message() default "请求过于频繁，请稍后再试";
+
+    enum Mode {
+        LOCAL, REDIS
+    }
+}
@@ -0,0 +1,167 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.IdUtil;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.RATE_LIMIT_KEY;
+
+/**
+ * 限流器，实现@RateLimit的两种模式，并按限流器名称统计放行和拒绝的次数
+ */
+@Component
+public class RateLimiter {
+
+    private static final DefaultRedisScript<Long> LIMIT_SCRIPT;
+
+    static {
+        LIMIT_SCRIPT = new DefaultRedisScript<>();
+        LIMIT_SCRIPT.setLocation(new ClassPathResource("limit.lua"));
+        LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //本地令牌桶，key为 名称 或 名称:userId
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    private static class Counter {
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+    }
+
+    /**
+     * @param name 限流器名称
+     * @param userId 当前用户，未登录为null
+     * @return true表示放行
+     */
+    public boolean tryAcquire(String name, RateLimit limit, Long userId) {
+        boolean admitted = limit.mode() == RateLimit.Mode.REDIS
+                ? tryAcquireRedis(name, limit, userId)
+                : tryAcquireLocal(name, limit, userId);
+        Counter counter = counters.computeIfAbsent(name, k -> new Counter());
+        (admitted ? counter.admitted : counter.rejected).increment();
+        return admitted;
+    }
+
+    private boolean tryAcquireLocal(String name, RateLimit limit, Long userId) {
+        // 先检查用户桶再检查全局桶，被单个用户拒绝的请求不消耗全局令牌
+        TokenBucket userBucket = null;
+        if (limit.userLimit() > 0 && userId != null) {
+            userBucket = buckets.computeIfAbsent(name + ":" + userId,
+                    k -> new TokenBucket(limit.userLimit(), limit.windowMs()));
+            if (!userBucket.tryAcquire()) {
+                return false;
+            }
+        }
+        if (limit.globalLimit() > 0) {
+            TokenBucket globalBucket = buckets.computeIfAbsent(name,
+                    k -> new TokenBucket(limit.globalLimit(), limit.windowMs()));
+            if (!globalBucket.tryAcquire()) {
+                if (userBucket != null) {
+                    userBucket.release();
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean tryAcquireRedis(String name, RateLimit limit, Long userId) {
+        List<String> keys = new ArrayList<>(2);
+        List<String> limits = new ArrayList<>(2);
+        if (limit.globalLimit() > 0) {
+            keys.add(RATE_LIMIT_KEY + name);
+            limits.add(String.valueOf(limit.globalLimit()));
+        }
+        if (limit.userLimit() > 0 && userId != null) {
+            keys.add(RATE_LIMIT_KEY + name + ":" + userId);
+            limits.add(String.valueOf(limit.userLimit()));
+        }
+        if (keys.isEmpty()) {
+            return true;
+        }
+        List<String> args = new ArrayList<>(5);
+        args.add(String.valueOf(System.currentTimeMillis()));
+        args.add(String.valueOf(limit.windowMs()));
+        args.add(IdUtil.fastSimpleUUID());
+        args.addAll(limits);
+        Long result = stringRedisTemplate.execute(LIMIT_SCRIPT, keys, args.toArray());
+        return result != null && result == 1L;
+    }
+
+    /**
+     * @return 限流器名称 -> {admitted, rejected}
+     */
+    public Map<String, Map<String, Long>> stats() {
+        Map<String, Map<String, Long>> stats = new LinkedHashMap<>();
+        counters.forEach((name, counter) -> {
+            Map<String, Long> stat = new LinkedHashMap<>();
+            stat.put("admitted", counter.admitted.sum());
+            stat.put("rejected", counter.rejected.sum());
+            stats.put(name, stat);
+        });
+        return stats;
+    }
+
+    //清理长时间没有请求的桶（此时令牌早已补满，删除后重建等价），避免用户数量多时内存一直增长
+    @Scheduled(fixedDelay = 60000)
+    public void pruneIdleBuckets() {
+        long now = System.nanoTime();
+        buckets.values().removeIf(bucket -> bucket.isIdle(now));
+    }
+
+    /**
+     * 令牌桶，容量为窗口内的限制次数，按 limit/window 的速率匀速补充
+     */
+    private static class TokenBucket {
+        private final double capacity;
+        private final double tokensPerNano;
+        private final long idleNanos;
+        private double tokens;
+        private long lastRefill;
+
+        private TokenBucket(long limit, long windowMs) {
+            long windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+            this.capacity = limit;
+            this.tokensPerNano = (double) limit / windowNanos;
+            this.idleNanos = Math.max(windowNanos, TimeUnit.MINUTES.toNanos(1));
+            this.tokens = limit;
+            this.lastRefill = System.nanoTime();
+        }
+
+        private synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+
+        private synchronized void release() {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+
+        private synchronized boolean isIdle(long now) {
+            return now - lastRefill > idleNanos;
+        }
+    }
+}
@@ -1,14 +1,41 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import cn.hutool.core.util.RandomUtil;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+
+/**
+ * 全局id：31位时间戳（秒，本地时间） + 32位序列号，序列号来自Redis的 icr:{keyPrefix}:{yyyyMMdd}
+ * mode=redis 时每个id INCR一次；mode=segment 时每次INCRBY step 租用一段序列号在本地发放，
+ * 当前段用掉 (1 - prefetch-ratio) 后异步预取下一段，生成的id格式不变
+ * mode=snowflake 时完全在本地生成：低32位为 1位标记 | 9位workerId | 10位毫秒 | 12位毫秒内序列号，
+ * workerId从Redis的 id:worker:{n} 租用并定期续期
+ * 可以用 id-worker.modes.{keyPrefix} 为不同业务单独指定模式，没有指定的使用 id-worker.mode
+ */
 @Component
 @Slf4j
 public class RedisIdWorker {
@@ -17,23 +44,347 @@ public class RedisIdWorker {
 
     private static final int COUNT_BITS = 32;
 
+    private static final String MODE_SEGMENT = "segment";
+
+    private static final String MODE_SNOWFLAKE = "snowflake";
+
+    //snowflake模式的标记位：Redis自增的序列号每天从1开始，用不到第32位，两种模式的id不会重复
+    private static final long LOCAL_FLAG = 1L << 31;
+
+    private static final int WORKER_ID_BITS = 9;
+
+    private static final int MILLIS_BITS = 10;
+
+    private static final int SEQUENCE_BITS = 12;
+
+    private static final int MAX_WORKER_ID = (1 << WORKER_ID_BITS) - 1;
+
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+    //时钟回拨超过这个时间时记录日志
+    private static final long CLOCK_BACKWARD_WARN_MS = 1000;
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private Environment environment;
+
+    //默认模式
+    @Value("${id-worker.mode:redis}")
+    private String mode;
+
+    //segment模式下每次租用的序列号数量
+    @Value("${id-worker.segment-step:1000}")
+    private int segmentStep;
+
+    //当前段剩余比例低于它时预取下一段
+    @Value("${id-worker.prefetch-ratio:0.2}")
+    private double prefetchRatio;
+
+    //snowflake模式下workerId租约的有效期，每1/3有效期续期一次
+    @Value("${id-worker.worker-lease-seconds:30}")
+    private long workerLeaseSeconds;
+
+    //keyPrefix -> 模式
+    private final Map<String, String> modes = new ConcurrentHashMap<>();
+
+    //keyPrefix -> 序列号段
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    //keyPrefix -> snowflake状态
+    private final Map<String, SnowflakeState> snowflakeStates = new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(
+            ThreadFactoryBuilder.create().setNamePrefix("id-segment-prefetch-").setDaemon(true).build());
+
+    private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(
+            ThreadFactoryBuilder.create().setNamePrefix("id-worker-heartbeat-").setDaemon(true).build());
+
+    //workerId租约的标示
+    private final String workerToken = UUID.randomUUID().toString(true);
+
+    //当前的workerId租约，id和截止时间一起替换，读取时不会看到一个新id配旧截止时间
+    private volatile WorkerLease workerLease = WorkerLease.NONE;
+
+    //缓存当天的日期字符串，同一天内不再重复格式化
+    private volatile DateKey dateKey = new DateKey(Long.MIN_VALUE, null);
+
+    //一段序列号 (cursor, max]，只属于某一天
+    private static class Segment {
+        private final String date;
+        private final AtomicLong cursor;
+        private final long max;
+        //发出这个序号时触发预取
+        private final long prefetchAt;
+
+        private Segment(String date, long start, long max, long prefetchAt) {
+            this.date = date;
+            this.cursor = new AtomicLong(start - 1);
+            this.max = max;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    //双缓冲：正在使用的段和预取好的下一段
+    private static class SegmentBuffer {
+        private volatile Segment current;
+        private volatile Segment next;
+    }
+
+    //一个keyPrefix的snowflake状态，用synchronized保护
+    //lastMillis是逻辑时钟（本地时间毫秒）：时钟回拨时沿用lastMillis，某一毫秒的序列号用完时借用下一毫秒，保证id不重复
+    private static class SnowflakeState {
+        private long lastMillis = -1;
+        private long sequence;
+        private boolean backward;
+    }
+
+    //workerId租约，deadline是本地认为租约有效的截止时间，过了这个时间必须重新租用
+    private static class WorkerLease {
+        private static final WorkerLease NONE = new WorkerLease(-1, 0);
+
+        private final int id;
+        private final long deadline;
+
+        private WorkerLease(int id, long deadline) {
+            this.id = id;
+            this.deadline = deadline;
+        }
+
+        private boolean isValid(long now) {
+            return id >= 0 && now < deadline;
+        }
+    }
+
+    private static class DateKey {
+        private final long epochDay;
+        private final String date;
+
+        private DateKey(long epochDay, String date) {
+            this.epochDay = epochDay;
+            this.date = date;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        long period = Math.max(1, TimeUnit.SECONDS.toMillis(workerLeaseSeconds) / 3);
+        heartbeatExecutor.scheduleAtFixedRate(this::renewWorkerId, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+        heartbeatExecutor.shutdownNow();
+        int id = workerLease.id;
+        if (id >= 0) {
+            stringRedisTemplate.execute(RELEASE_SCRIPT,
+                    Collections.singletonList(ID_WORKER_KEY + id), workerToken);
+        }
+    }
+
     public long nextId(String keyPrefix) {
-        //生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        String keyMode = modeOf(keyPrefix);
+        if (MODE_SNOWFLAKE.equals(keyMode)) {
+            return nextSnowflakeId(keyPrefix);
+        }
+        //生成时间戳，与 LocalDateTime.now().toEpochSecond(ZoneOffset.UTC) 相同，即本地时间按UTC换算的秒数
+        long now = System.currentTimeMillis();
+        long nowSecond = Math.floorDiv(now + TimeZone.getDefault().getOffset(now), 1000L);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
 
         //生成序列号
         //获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyyMMdd"));
-        //Redis自增
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        String date = date(Math.floorDiv(nowSecond, 86400L));
+        long count = MODE_SEGMENT.equals(keyMode)
+                ? nextSegmentCount(keyPrefix, date)
+                //Redis自增
+                : stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
 
         //拼接返回
         return timestamp << COUNT_BITS | count;
     }
 
+    private String modeOf(String keyPrefix) {
+        return modes.computeIfAbsent(keyPrefix,
+                k -> environment.getProperty("id-worker.modes." + k, mode));
+    }
+
+    //本地生成：时间戳与其它模式相同，低32位为 标记 | workerId | 毫秒 | 毫秒内序列号
+    private long nextSnowflakeId(String keyPrefix) {
+        long worker = workerId();
+        SnowflakeState state = snowflakeStates.computeIfAbsent(keyPrefix, k -> new SnowflakeState());
+        long millis;
+        long sequence;
+        synchronized (state) {
+            long now = System.currentTimeMillis();
+            now += TimeZone.getDefault().getOffset(now);
+            if (now < state.lastMillis) {
+                // 时钟回拨，沿用上一次的时间
+                if (!state.backward && state.lastMillis - now > CLOCK_BACKWARD_WARN_MS) {
+                    log.warn("时钟回拨{}ms，{}继续使用上一次的时间生成id", state.lastMillis - now, keyPrefix);
+                }
+                state.backward = true;
+                now = state.lastMillis;
+            } else {
+                state.backward = false;
+            }
+            if (now == state.lastMillis) {
+                state.sequence = (state.sequence + 1) & MAX_SEQUENCE;
+                if (state.sequence == 0) {
+                    // 这一毫秒的序列号用完了，借用下一毫秒
+                    now++;
+                }
+            } else {
+                state.sequence = 0;
+            }
+            state.lastMillis = now;
+            millis = now;
+            sequence = state.sequence;
+        }
+        long timestamp = Math.floorDiv(millis, 1000L) - BEGIN_TIMESTAMP;
+        long millisOfSecond = Math.floorMod(millis, 1000L);
+        return timestamp << COUNT_BITS | LOCAL_FLAG
+                | worker << (MILLIS_BITS + SEQUENCE_BITS) | millisOfSecond << SEQUENCE_BITS | sequence;
+    }
+
+    //返回的workerId一定有效；没有有效租约时同步租用，租不到时抛出异常，不会用-1生成id
+    private int workerId() {
+        WorkerLease lease = workerLease;
+        if (lease.isValid(System.currentTimeMillis())) {
+            return lease.id;
+        }
+        synchronized (this) {
+            lease = workerLease;
+            if (!lease.isValid(System.currentTimeMillis())) {
+                lease = acquireWorkerId();
+            }
+            return lease.id;
+        }
+    }
+
+    //从随机位置开始依次尝试 SET id:worker:{n} token NX EX leaseSeconds
+    private WorkerLease acquireWorkerId() {
+        int start = RandomUtil.randomInt(MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            int id = (start + i) % (MAX_WORKER_ID + 1);
+            long leasedAt = System.currentTimeMillis();
+            Boolean leased = stringRedisTemplate.opsForValue().setIfAbsent(
+                    ID_WORKER_KEY + id, workerToken, workerLeaseSeconds, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(leased)) {
+                WorkerLease lease = new WorkerLease(id, leasedAt + TimeUnit.SECONDS.toMillis(workerLeaseSeconds));
+                workerLease = lease;
+                log.info("租用workerId：{}", id);
+                return lease;
+            }
+        }
+        throw new IllegalStateException("没有可用的workerId");
+    }
+
+    //心跳：续期成功后延长本地截止时间；key已经被其它实例占用时放弃这个workerId，下次生成id时重新租用
+    private void renewWorkerId() {
+        int id = workerLease.id;
+        if (id < 0) {
+            return;
+        }
+        try {
+            long renewedAt = System.currentTimeMillis();
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(ID_WORKER_KEY + id),
+                    workerToken, String.valueOf(workerLeaseSeconds));
+            boolean valid = renewed != null && renewed == 1;
+            if (!valid) {
+                log.warn("workerId {} 的租约已经失效，重新租用", id);
+            }
+            synchronized (this) {
+                // 期间已经换成了别的workerId时不覆盖
+                if (workerLease.id == id) {
+                    workerLease = valid
+                            ? new WorkerLease(id, renewedAt + TimeUnit.SECONDS.toMillis(workerLeaseSeconds))
+                            : WorkerLease.NONE;
+                }
+            }
+        } catch (Exception e) {
+            // Redis暂时不可用时不续期，本地截止时间到了以后停止使用这个workerId
+            log.error("workerId续期失败", e);
+        }
+    }
+
+    private String date(long epochDay) {
+        DateKey key = dateKey;
+        if (key.epochDay != epochDay) {
+            key = new DateKey(epochDay, LocalDate.ofEpochDay(epochDay).format(DATE_FORMATTER));
+            dateKey = key;
+        }
+        return key.date;
+    }
+
+    //从本地的段中取序列号，段用完或者跨天时切换到预取好的下一段，没有预取好时同步租用
+    private long nextSegmentCount(String keyPrefix, String date) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, k -> new SegmentBuffer());
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.date.equals(date)) {
+                long count = segment.cursor.incrementAndGet();
+                if (count <= segment.max) {
+                    if (count == segment.prefetchAt) {
+                        prefetch(keyPrefix, date, buffer);
+                    }
+                    return count;
+                }
+            }
+            synchronized (buffer) {
+                if (buffer.current != segment) {
+                    // 其它线程已经切换过了
+                    continue;
+                }
+                Segment next = buffer.next;
+                buffer.next = null;
+                if (next == null || !next.date.equals(date)) {
+                    next = lease(keyPrefix, date);
+                }
+                buffer.current = next;
+            }
+        }
+    }
+
+    private void prefetch(String keyPrefix, String date, SegmentBuffer buffer) {
+        prefetchExecutor.submit(() -> {
+            try {
+                Segment next = lease(keyPrefix, date);
+                synchronized (buffer) {
+                    if (buffer.next == null) {
+                        buffer.next = next;
+                    }
+                }
+            } catch (Exception e) {
+                // 预取失败时由发号线程在当前段用完后同步租用
+                log.error("预取id段失败：" + keyPrefix, e);
+            }
+        });
+    }
+
+    //INCRBY icr:{keyPrefix}:{date} step，得到 (end - step, end] 这一段
+    private Segment lease(String keyPrefix, String date) {
+        long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentStep);
+        long start = end - segmentStep + 1;
+        long prefetchAt = end - (long) (segmentStep * prefetchRatio);
+        return new Segment(date, start, end, Math.max(start, prefetchAt));
+    }
+
 }
@@ -0,0 +1,593 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 基于Redis Stream的订单队列（默认）
+ * seckill.lua把订单XADD到stream.orders（多分片时为stream.orders:n），每个分片一个读取线程通过消费者组读取，
+ * 按userId分发给worker创建订单；未确认的消息留在pending-list中，空闲超时后重新投递，超过投递次数转入死信stream
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "seckill.order.queue", havingValue = "stream", matchIfMissing = true)
+public class RedisStreamOrderQueue implements OrderQueue {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+
+    @Resource
+    private OrderTimeoutScheduler orderTimeoutScheduler;
+
+    @Resource
+    private SeckillStockReturner stockReturner;
+
+    //一次XREADGROUP最多读取batchSize条；批量模式下worker在首条到达后最多再等待lingerMs凑批
+    @Value("${seckill.order.batch-enabled:false}")
+    private boolean batchEnabled;
+
+    @Value("${seckill.order.batch-size:100}")
+    private int batchSize;
+
+    @Value("${seckill.order.linger-ms:50}")
+    private long lingerMs;
+
+    private static final String QUEUE_NAME = "stream.orders";
+
+    private static final String GROUP_NAME = "g1";
+
+    private static final String DEAD_LETTER_QUEUE_NAME = "stream.orders.dlq";
+
+    //每次处理pending-list最多扫描的页数，避免读取线程长时间不读新消息
+    private static final int RECOVERY_MAX_PAGES = 10;
+
+    //queuedBuyers每次XRANGE读取的消息数
+    private static final int QUEUED_SCAN_PAGE_SIZE = 1000;
+
+    //订单消费线程会在任何一次秒杀请求之前启动（例如重启后处理pending-list），所以不能依赖seckill里赋值的代理对象
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy;
+
+    //消费者名称，默认取 主机名:端口，同一实例重启后名称不变，可以接着处理自己的pending-list
+    @Value("${seckill.order.consumer-name:}")
+    private String consumerName;
+
+    @Value("${server.port:8081}")
+    private int serverPort;
+
+    //worker数量，订单按userId哈希分配给worker，同一用户的订单总是由同一个线程串行处理
+    @Value("${seckill.order.workers:4}")
+    private int workerCount;
+
+    @Value("${seckill.order.worker-queue-capacity:1024}")
+    private int workerQueueCapacity;
+
+    //订单stream分片数，按 voucherId % shards 选择分片，seckill.lua使用同样的规则
+    //每个分片有自己的消费者组、读取线程和worker
+    @Value("${seckill.order.shards:1}")
+    private int shardCount;
+
+    //pending-list处理间隔
+    @Value("${seckill.order.recovery-interval-ms:5000}")
+    private long recoveryIntervalMs;
+
+    //pending消息空闲超过这个时间才会被认领，需要大于正常情况下消息在worker队列中等待的时间
+    @Value("${seckill.order.recovery-min-idle-ms:30000}")
+    private long recoveryMinIdleMs;
+
+    //投递次数上限，超过后转入stream.orders.dlq
+    @Value("${seckill.order.max-deliveries:5}")
+    private long maxDeliveries;
+
+    //每隔多久裁剪一次stream并测量消费延迟
+    @Value("${seckill.order.lag-check-interval-ms:1000}")
+    private long lagCheckIntervalMs;
+
+    //未投递的消息数超过这个值时秒杀接口直接返回繁忙，0表示不限制
+    @Value("${seckill.order.max-backlog:50000}")
+    private long maxBacklog;
+
+    //最早一条未投递消息的等待时间超过这个值时秒杀接口直接返回繁忙，0表示不限制
+    //pending-list中等待重新投递的消息不计入，所以与recovery-min-idle-ms、max-deliveries无关
+    @Value("${seckill.order.max-lag-ms:10000}")
+    private long maxLagMs;
+
+    //各分片最近一次测量到的消费延迟，由各分片的读取线程更新
+    private final Map<String, StreamLag> streamLags = new ConcurrentHashMap<>();
+
+    //异步处理线程池：每个分片1个读取线程 + workerCount个worker
+    private ExecutorService seckillOrderExecutor;
+
+    @PostConstruct
+    private void init() {
+        if (StrUtil.isBlank(consumerName)) {
+            consumerName = NetUtil.getLocalHostName() + ":" + serverPort;
+        }
+        seckillOrderExecutor = Executors.newFixedThreadPool(shardCount * (workerCount + 1),
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-order-").build());
+        for (int shard = 0; shard < shardCount; shard++) {
+            String streamKey = streamKey(shard);
+            createGroupIfAbsent(streamKey);
+            Set<String> inFlight = ConcurrentHashMap.newKeySet();
+            List<VoucherOrderWorker> workers = new ArrayList<>(workerCount);
+            for (int i = 0; i < workerCount; i++) {
+                VoucherOrderWorker worker = new VoucherOrderWorker(streamKey, inFlight);
+                workers.add(worker);
+                seckillOrderExecutor.submit(worker);
+            }
+            seckillOrderExecutor.submit(new VoucherOrderHandler(streamKey, workers, inFlight));
+        }
+    }
+
+    //只有一个分片时沿用原来的stream.orders，多个分片时为 stream.orders:0 ~ stream.orders:n-1
+    private String streamKey(int shard) {
+        return shardCount == 1 ? QUEUE_NAME : QUEUE_NAME + ":" + shard;
+    }
+
+    //XGROUP CREATE key g1 0 MKSTREAM，消费者组已存在时忽略
+    private void createGroupIfAbsent(String streamKey) {
+        try {
+            stringRedisTemplate.opsForStream().createGroup(streamKey, ReadOffset.from("0"), GROUP_NAME);
+        } catch (Exception e) {
+            if (!StrUtil.contains(ExceptionUtil.getRootCauseMessage(e), "BUSYGROUP")) {
+                log.error("创建消费者组失败：" + streamKey, e);
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        seckillOrderExecutor.shutdownNow();
+    }
+
+    //从stream中读出的一条订单消息
+    private static class OrderRecord {
+        private final RecordId recordId;
+        private final VoucherOrder voucherOrder;
+
+        private OrderRecord(RecordId recordId, VoucherOrder voucherOrder) {
+            this.recordId = recordId;
+            this.voucherOrder = voucherOrder;
+        }
+    }
+
+    //一个分片的消费延迟，只统计还没有投递给任何消费者的消息（last-delivered-id之后的消息）：
+    //backlog为未投递的消息数，lagMs为第一条未投递消息写入至今的时间；
+    //pending-list中等待重新投递的消息不计入，一条反复失败的消息不会让整个分片返回繁忙
+    private static class StreamLag {
+        private final long backlog;
+        private final long lagMs;
+
+        private StreamLag(long backlog, long lagMs) {
+            this.backlog = backlog;
+            this.lagMs = lagMs;
+        }
+    }
+
+    //读取线程：只负责从一个分片读取消息，并按userId分发给该分片的worker
+    //同时定期认领整个消费者组里空闲太久的pending消息（包括已经宕机的实例的），超过投递次数上限的转入死信stream
+    private class VoucherOrderHandler implements Runnable {
+        private final String streamKey;
+        private final List<VoucherOrderWorker> workers;
+        //已分发给worker但还没处理完的消息id，认领pending消息时跳过它们
+        private final Set<String> inFlight;
+        private long nextRecoveryAt;
+        private long nextLagCheckAt;
+        private boolean trimSupported = true;
+
+        private VoucherOrderHandler(String streamKey, List<VoucherOrderWorker> workers, Set<String> inFlight) {
+            this.streamKey = streamKey;
+            this.workers = workers;
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        // 0.定期处理pending-list，启动后第一次循环就会执行
+                        if (System.currentTimeMillis() >= nextRecoveryAt) {
+                            handlePendingList();
+                            nextRecoveryAt = System.currentTimeMillis() + recoveryIntervalMs;
+                        }
+                        // 0.1.定期裁剪已确认的消息并测量消费延迟
+                        if (System.currentTimeMillis() >= nextLagCheckAt) {
+                            trimAndMeasureLag();
+                            nextLagCheckAt = System.currentTimeMillis() + lagCheckIntervalMs;
+                        }
+                        // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 consumerName COUNT n BLOCK 2000 STREAMS s1 >
+                        List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                                Consumer.from(GROUP_NAME, consumerName),
+                                StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                                StreamOffset.create(streamKey, ReadOffset.lastConsumed())
+                        );
+                        // 2.判断订单信息是否为空
+                        if (list == null || list.isEmpty()) {
+                            // 如果为null，说明没有消息，继续下一次循环
+                            continue;
+                        }
+                        // 3.分发给worker
+                        for (MapRecord<String, Object, Object> record : list) {
+                            dispatch(record.getId(), record.getValue());
+                        }
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        log.error("读取订单消息异常", e);
+                        Thread.sleep(20);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        //延迟按last-delivered-id之后的第一条消息（第一条未投递的消息）测量；
+        //裁剪点是最早一条未确认的消息：有pending消息时是最小的pending id，否则是第一条未投递的消息，
+        //比它更早的消息都已经确认过，用 XTRIM stream MINID ~ id 删除（需要Redis 6.2+），stream的长度随积压量而不是历史订单量增长
+        private void trimAndMeasureLag() {
+            // XINFO GROUPS stream，取g1的last-delivered-id
+            StreamInfo.XInfoGroup group = stringRedisTemplate.opsForStream().groups(streamKey).stream()
+                    .filter(g -> GROUP_NAME.equals(g.groupName()))
+                    .findFirst().orElse(null);
+            if (group == null || group.lastDeliveredId() == null) {
+                return;
+            }
+            String lastDelivered = group.lastDeliveredId();
+            // XRANGE stream lastDelivered + COUNT 2，第一条之后的就是还没投递的消息
+            List<MapRecord<String, Object, Object>> next = stringRedisTemplate.opsForStream().range(streamKey,
+                    Range.rightUnbounded(Range.Bound.inclusive(lastDelivered)), RedisZSetCommands.Limit.limit().count(2));
+            RecordId undelivered = next == null ? null : next.stream()
+                    .map(MapRecord::getId)
+                    .filter(id -> !id.getValue().equals(lastDelivered))
+                    .findFirst().orElse(null);
+            String trimId = undelivered == null ? lastDelivered : undelivered.getValue();
+            if (group.pendingCount() != null && group.pendingCount() > 0) {
+                PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(streamKey, GROUP_NAME);
+                if (summary.getTotalPendingMessages() > 0) {
+                    trimId = summary.minRecordId().getValue();
+                }
+            }
+            if (trimSupported && !"0-0".equals(trimId)) {
+                byte[][] args = {streamKey.getBytes(StandardCharsets.UTF_8), "MINID".getBytes(StandardCharsets.UTF_8),
+                        "~".getBytes(StandardCharsets.UTF_8), trimId.getBytes(StandardCharsets.UTF_8)};
+                try {
+                    stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XTRIM", args));
+                } catch (Exception e) {
+                    // Redis版本低于6.2时不支持MINID，只测量延迟，不再裁剪
+                    trimSupported = false;
+                    log.warn("XTRIM MINID执行失败，停止裁剪" + streamKey + "：" + ExceptionUtil.getRootCauseMessage(e));
+                }
+            }
+            long backlog = undelivered == null ? 0 : undeliveredCount(group);
+            long lagMs = undelivered == null ? 0 : Math.max(0, System.currentTimeMillis() - undelivered.getTimestamp());
+            streamLags.put(streamKey, new StreamLag(backlog, lagMs));
+        }
+
+        //未投递的消息数：Redis 7.0+ 的XINFO GROUPS直接返回lag；
+        //更早的版本没有这个字段，从last-delivered-id开始XRANGE数，最多数到maxBacklog+1条，超过阈值就够了，
+        //不能用XLEN：pending-list中卡住的消息会阻止裁剪，stream长度会一直增长
+        private long undeliveredCount(StreamInfo.XInfoGroup group) {
+            Object lag = group.getRaw().get("lag");
+            if (lag instanceof Number) {
+                return ((Number) lag).longValue();
+            }
+            String lastDelivered = group.lastDeliveredId();
+            long limit = maxBacklog > 0 ? maxBacklog + 1 : QUEUED_SCAN_PAGE_SIZE;
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(streamKey,
+                    Range.rightUnbounded(Range.Bound.inclusive(lastDelivered)),
+                    RedisZSetCommands.Limit.limit().count((int) Math.min(limit + 1, Integer.MAX_VALUE)));
+            if (records == null) {
+                return 0;
+            }
+            return records.stream().filter(record -> !record.getId().getValue().equals(lastDelivered)).limit(limit).count();
+        }
+
+        //XPENDING stream g1 - + n 分页扫描整个消费者组的pending-list，
+        //空闲超过recoveryMinIdleMs的消息用XCLAIM认领到自己名下（投递次数+1）后重新分发
+        private void handlePendingList() throws InterruptedException {
+            Range<String> range = Range.unbounded();
+            String lastId = null;
+            for (int page = 0; page < RECOVERY_MAX_PAGES; page++) {
+                PendingMessages pending = stringRedisTemplate.opsForStream().pending(streamKey, GROUP_NAME, range, batchSize);
+                if (pending.isEmpty()) {
+                    return;
+                }
+                List<RecordId> ids = new ArrayList<>();
+                Map<String, Long> deliveries = new HashMap<>();
+                for (PendingMessage message : pending) {
+                    String id = message.getIdAsString();
+                    // 范围是闭区间，跳过上一页的最后一条
+                    if (id.equals(lastId) || inFlight.contains(id)
+                            || message.getElapsedTimeSinceLastDelivery().toMillis() < recoveryMinIdleMs) {
+                        continue;
+                    }
+                    ids.add(message.getId());
+                    deliveries.put(id, message.getTotalDeliveryCount());
+                }
+                if (!ids.isEmpty()) {
+                    claimAndDispatch(ids, deliveries);
+                }
+                if (pending.size() < batchSize) {
+                    return;
+                }
+                lastId = pending.get(pending.size() - 1).getIdAsString();
+                range = Range.rightUnbounded(Range.Bound.inclusive(lastId));
+            }
+        }
+
+        private void claimAndDispatch(List<RecordId> ids, Map<String, Long> deliveries) throws InterruptedException {
+            // XCLAIM stream g1 consumerName minIdle id1 id2 ...，期间被其它消费者认领的消息不会返回
+            byte[] rawKey = streamKey.getBytes(StandardCharsets.UTF_8);
+            RedisStreamCommands.XClaimOptions options = RedisStreamCommands.XClaimOptions
+                    .minIdleMs(recoveryMinIdleMs).ids(ids);
+            List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xClaim(rawKey, GROUP_NAME, consumerName, options));
+            if (claimed == null) {
+                return;
+            }
+            for (ByteRecord record : claimed) {
+                Map<Object, Object> value = new HashMap<>();
+                record.getValue().forEach((k, v) ->
+                        value.put(new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+                long delivered = deliveries.getOrDefault(record.getId().getValue(), 0L) + 1;
+                if (delivered > maxDeliveries) {
+                    moveToDeadLetter(record.getId(), value, delivered);
+                } else {
+                    dispatch(record.getId(), value);
+                }
+            }
+        }
+
+        //转入死信stream：XADD stream.orders.dlq * 原消息字段 + 来源，然后XACK原消息
+        private void moveToDeadLetter(RecordId recordId, Map<Object, Object> value, long delivered) {
+            Map<Object, Object> fields = new HashMap<>(value);
+            fields.put("stream", streamKey);
+            fields.put("recordId", recordId.getValue());
+            fields.put("deliveries", String.valueOf(delivered));
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(DEAD_LETTER_QUEUE_NAME).ofMap(fields));
+            stringRedisTemplate.opsForStream().acknowledge(streamKey, GROUP_NAME, recordId);
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+            List<VoucherOrder> orders = Collections.singletonList(voucherOrder);
+            if (proxy.getById(voucherOrder.getId()) != null) {
+                // 订单已经写入数据库，只是XACK一直失败，按创建成功处理，不能归还库存
+                orderTimeoutScheduler.schedule(orders);
+                orderStatusTracker.markCreated(orders);
+            } else {
+                // 订单没有创建：归还Redis库存并移出已购买用户，与ring-buffer队列的失败处理一致，用户可以重新抢购
+                stockReturner.returnOrders(orders);
+                orderStatusTracker.markFailed(orders);
+            }
+            log.error("订单消息投递" + delivered + "次仍未成功，转入死信队列：" + streamKey + " " + recordId + " " + value);
+        }
+
+        private void dispatch(RecordId recordId, Map<Object, Object> value) throws InterruptedException {
+            // 解析数据
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+            // 按userId选择worker，worker队列满时阻塞读取线程，形成背压
+            int index = Math.floorMod(voucherOrder.getUserId().hashCode(), workerCount);
+            inFlight.add(recordId.getValue());
+            workers.get(index).queue.put(new OrderRecord(recordId, voucherOrder));
+        }
+    }
+
+    //worker：串行处理分配给自己的用户的订单，所以不再需要lock:order:分布式锁
+    private class VoucherOrderWorker implements Runnable {
+        private final String streamKey;
+        private final Set<String> inFlight;
+        private final BlockingQueue<OrderRecord> queue = new ArrayBlockingQueue<>(workerQueueCapacity);
+
+        private VoucherOrderWorker(String streamKey, Set<String> inFlight) {
+            this.streamKey = streamKey;
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    List<OrderRecord> records = takeOrders();
+                    if (batchEnabled) {
+                        handleOrderBatch(records);
+                    } else {
+                        handleOrder(records.get(0));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        //批量模式下，第一条订单到达后在lingerMs内继续凑批，最多batchSize条
+        private List<OrderRecord> takeOrders() throws InterruptedException {
+            List<OrderRecord> records = new ArrayList<>();
+            records.add(queue.take());
+            if (!batchEnabled) {
+                return records;
+            }
+            long deadline = System.currentTimeMillis() + lingerMs;
+            while (records.size() < batchSize) {
+                queue.drainTo(records, batchSize - records.size());
+                long remaining = deadline - System.currentTimeMillis();
+                if (records.size() >= batchSize || remaining <= 0) {
+                    break;
+                }
+                OrderRecord record = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                if (record == null) {
+                    break;
+                }
+                records.add(record);
+            }
+            return records;
+        }
+
+        //批量处理：一个事务、一次XACK
+        //批量失败时退回逐条处理，避免一条异常消息拖住整批
+        private void handleOrderBatch(List<OrderRecord> records) {
+            try {
+                List<VoucherOrder> voucherOrders = records.stream()
+                        .map(record -> record.voucherOrder)
+                        .collect(Collectors.toList());
+                proxy.createVoucherOrderBatch(voucherOrders);
+                // 登记超时未支付取消，重复登记只会更新到期时间
+                orderTimeoutScheduler.schedule(voucherOrders);
+                // XACK stream.orders g1 id1 id2 ...
+                RecordId[] ids = records.stream().map(record -> record.recordId).toArray(RecordId[]::new);
+                stringRedisTemplate.opsForStream().acknowledge(streamKey, GROUP_NAME, ids);
+                orderStatusTracker.markCreated(voucherOrders);
+                records.forEach(record -> inFlight.remove(record.recordId.getValue()));
+            } catch (Exception e) {
+                log.error("批量处理订单异常", e);
+                records.forEach(this::handleOrder);
+            }
+        }
+
+        //逐条处理，失败的消息留在pending-list中，由读取线程在空闲超时后重新投递
+        private void handleOrder(OrderRecord record) {
+            try {
+                // 创建订单
+                boolean created = proxy.createVoucherOrder(record.voucherOrder);
+                List<VoucherOrder> orders = Collections.singletonList(record.voucherOrder);
+                if (created) {
+                    // 登记超时未支付取消
+                    orderTimeoutScheduler.schedule(orders);
+                }
+                // 确认消息 XACK
+                stringRedisTemplate.opsForStream().acknowledge(streamKey, GROUP_NAME, record.recordId);
+                // 更新订单状态
+                if (created) {
+                    orderStatusTracker.markCreated(orders);
+                } else {
+                    orderStatusTracker.markFailed(orders);
+                    // 用户已经用别的订单买过，这个订单在Redis中扣的库存要还回去
+                    stockReturner.returnStock(record.voucherOrder.getVoucherId(), 1);
+                }
+            } catch (Exception e) {
+                log.error("处理订单异常：" + streamKey + " " + record.recordId, e);
+            } finally {
+                inFlight.remove(record.recordId.getValue());
+            }
+        }
+    }
+
+    //各分片pending-list的积压情况和死信数量
+    @Override
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        for (int shard = 0; shard < shardCount; shard++) {
+            String streamKey = streamKey(shard);
+            // XPENDING stream g1
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(streamKey, GROUP_NAME);
+            Map<String, Object> stat = new LinkedHashMap<>();
+            stat.put("pending", summary.getTotalPendingMessages());
+            // 最早一条pending消息的id中带有写入时间，据此计算积压时长
+            RecordId oldest = summary.getTotalPendingMessages() > 0 ? summary.minRecordId() : null;
+            stat.put("oldestPendingAgeMs", oldest == null ? 0 : now - oldest.getTimestamp());
+            stat.put("pendingPerConsumer", summary.getPendingMessagesPerConsumer());
+            StreamLag lag = streamLags.get(streamKey);
+            stat.put("backlog", lag == null ? 0 : lag.backlog);
+            stat.put("lagMs", lag == null ? 0 : lag.lagMs);
+            stats.put(streamKey, stat);
+        }
+        Long deadLetters = stringRedisTemplate.opsForStream().size(DEAD_LETTER_QUEUE_NAME);
+        stats.put(DEAD_LETTER_QUEUE_NAME, deadLetters == null ? 0 : deadLetters);
+        return stats;
+    }
+
+    //XRANGE分页扫描该优惠券所在分片：stream只裁剪到最早一条未确认的消息，
+    //未投递、pending-list中（包括等待重新投递）的消息都还在stream中，已确认但还没裁剪的消息也会算进来，只会让对账更保守
+    @Override
+    public Set<Long> queuedBuyers(Long voucherId) {
+        String streamKey = streamKey((int) (voucherId % shardCount));
+        String voucher = voucherId.toString();
+        Set<Long> buyers = new HashSet<>();
+        Range<String> range = Range.unbounded();
+        String lastId = null;
+        while (true) {
+            List<MapRecord<String, Object, Object>> page = stringRedisTemplate.opsForStream().range(streamKey,
+                    range, RedisZSetCommands.Limit.limit().count(QUEUED_SCAN_PAGE_SIZE));
+            if (page == null || page.isEmpty()) {
+                return buyers;
+            }
+            for (MapRecord<String, Object, Object> record : page) {
+                // 范围是闭区间，跳过上一页的最后一条
+                if (record.getId().getValue().equals(lastId)) {
+                    continue;
+                }
+                Map<Object, Object> value = record.getValue();
+                if (voucher.equals(value.get("voucherId"))) {
+                    buyers.add(Long.valueOf(value.get("userId").toString()));
+                }
+            }
+            if (page.size() < QUEUED_SCAN_PAGE_SIZE) {
+                return buyers;
+            }
+            lastId = page.get(page.size() - 1).getId().getValue();
+            range = Range.rightUnbounded(Range.Bound.inclusive(lastId));
+        }
+    }
+
+    //订单由seckill.lua直接XADD到stream，扣库存和写队列在同一个脚本中原子完成
+    @Override
+    public boolean isPublishedByScript() {
+        return true;
+    }
+
+    //订单已经由seckill.lua写入stream，seckill接口不会调用这里；空操作，避免重复写入
+    @Override
+    public void publish(VoucherOrder voucherOrder) {
+    }
+
+    //该优惠券所在分片的积压量或延迟超过阈值
+    @Override
+    public boolean isOverloaded(Long voucherId, Long userId) {
+        StreamLag lag = streamLags.get(streamKey((int) (voucherId % shardCount)));
+        if (lag == null) {
+            return false;
+        }
+        return (maxBacklog > 0 && lag.backlog > maxBacklog) || (maxLagMs > 0 && lag.lagMs > maxLagMs);
+    }
+}
@@ -0,0 +1,297 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 进程内环形队列（Disruptor风格），用于单机部署和压测，省掉订单经过Redis Stream的一次网络往返
+ * 每个worker一个预分配的环形数组，订单按userId哈希选择环，多个请求线程CAS申请序号写入，worker批量取出后创建订单
+ * 订单只保存在内存中：实例宕机时还没写入数据库的订单会丢失（Redis中的库存和下单记录已经扣减），不适合多实例生产部署
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "seckill.order.queue", havingValue = "ring-buffer")
+public class RingBufferOrderQueue implements OrderQueue {
+
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy;
+
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+
+    @Resource
+    private OrderTimeoutScheduler orderTimeoutScheduler;
+
+    @Resource
+    private SeckillStockReturner stockReturner;
+
+    //worker数量，与stream模式一样按userId哈希分配，同一用户的订单由同一个线程串行处理
+    @Value("${seckill.order.workers:4}")
+    private int workerCount;
+
+    //每个环的槽位数，向上取整到2的幂
+    @Value("${seckill.order.ring-buffer.size:65536}")
+    private int bufferSize;
+
+    //积压超过 槽位数*high-watermark 时秒杀接口返回繁忙，避免请求线程在publish中等待
+    @Value("${seckill.order.ring-buffer.high-watermark:0.75}")
+    private double highWatermark;
+
+    //worker每次最多取出batchSize个订单；批量模式下一批订单在一个事务中创建
+    @Value("${seckill.order.batch-enabled:false}")
+    private boolean batchEnabled;
+
+    @Value("${seckill.order.batch-size:100}")
+    private int batchSize;
+
+    private RingBuffer[] rings;
+
+    private ExecutorService ringBufferExecutor;
+
+    @PostConstruct
+    private void init() {
+        int capacity = Integer.highestOneBit(Math.max(bufferSize, 2) - 1) << 1;
+        rings = new RingBuffer[workerCount];
+        ringBufferExecutor = Executors.newFixedThreadPool(workerCount,
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-ring-").build());
+        for (int i = 0; i < workerCount; i++) {
+            rings[i] = new RingBuffer(capacity);
+            ringBufferExecutor.submit(rings[i]);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        ringBufferExecutor.shutdownNow();
+        for (int i = 0; i < rings.length; i++) {
+            long backlog = rings[i].backlog();
+            if (backlog > 0) {
+                log.warn("环形队列" + i + "中还有" + backlog + "个订单未处理，随实例关闭丢失");
+            }
+        }
+    }
+
+    //订单不经过stream，由seckill接口在脚本返回后写入
+    @Override
+    public boolean isPublishedByScript() {
+        return false;
+    }
+
+    @Override
+    public void publish(VoucherOrder voucherOrder) {
+        ringOf(voucherOrder.getUserId()).publish(voucherOrder);
+    }
+
+    @Override
+    public boolean isOverloaded(Long voucherId, Long userId) {
+        RingBuffer ring = ringOf(userId);
+        return ring.backlog() >= ring.entries.length * highWatermark;
+    }
+
+    //环中已发布、worker还没取走的订单；worker正在处理的订单已经不在环中，由对账的连续确认覆盖
+    @Override
+    public Set<Long> queuedBuyers(Long voucherId) {
+        Set<Long> buyers = new HashSet<>();
+        for (RingBuffer ring : rings) {
+            long highest = ring.cursor.get();
+            for (long sequence = ring.consumed.get() + 1; sequence <= highest; sequence++) {
+                OrderEvent event = ring.entries[(int) sequence & ring.mask];
+                if (event.voucherId == voucherId) {
+                    buyers.add(event.userId);
+                }
+            }
+        }
+        return buyers;
+    }
+
+    @Override
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (int i = 0; i < rings.length; i++) {
+            Map<String, Object> stat = new LinkedHashMap<>();
+            stat.put("capacity", rings[i].entries.length);
+            stat.put("backlog", rings[i].backlog());
+            stats.put("ring-" + i, stat);
+        }
+        return stats;
+    }
+
+    private RingBuffer ringOf(Long userId) {
+        return rings[Math.floorMod(userId.hashCode(), workerCount)];
+    }
+
+    //环中预分配的槽位，发布时只覆盖字段，不产生新对象
+    private static class OrderEvent {
+        private long id;
+        private long userId;
+        private long voucherId;
+    }
+
+    //多生产者单消费者的环形队列
+    //cursor是已经被申请的最大序号，consumed是worker已经取走的最大序号；
+    //生产者写完槽位后在available中记下该序号所在的圈数，worker据此判断槽位是否已经发布，不需要加锁
+    private class RingBuffer implements Runnable {
+        private final OrderEvent[] entries;
+        private final int mask;
+        private final int indexShift;
+        private final AtomicIntegerArray available;
+        private final AtomicLong cursor = new AtomicLong(-1);
+        private final AtomicLong consumed = new AtomicLong(-1);
+
+        private RingBuffer(int capacity) {
+            entries = new OrderEvent[capacity];
+            for (int i = 0; i < capacity; i++) {
+                entries[i] = new OrderEvent();
+            }
+            mask = capacity - 1;
+            indexShift = Integer.numberOfTrailingZeros(capacity);
+            available = new AtomicIntegerArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                available.set(i, -1);
+            }
+        }
+
+        private long backlog() {
+            return cursor.get() - consumed.get();
+        }
+
+        private void publish(VoucherOrder voucherOrder) {
+            // 1.申请序号，环满时等待worker取走订单
+            long sequence;
+            while (true) {
+                long current = cursor.get();
+                long next = current + 1;
+                if (next - consumed.get() > entries.length) {
+                    LockSupport.parkNanos(1000);
+                    continue;
+                }
+                if (cursor.compareAndSet(current, next)) {
+                    sequence = next;
+                    break;
+                }
+            }
+            // 2.写入槽位
+            int index = (int) sequence & mask;
+            OrderEvent event = entries[index];
+            event.id = voucherOrder.getId();
+            event.userId = voucherOrder.getUserId();
+            event.voucherId = voucherOrder.getVoucherId();
+            // 3.发布，写入圈数之前的字段修改对worker可见
+            available.lazySet(index, (int) (sequence >>> indexShift));
+        }
+
+        private boolean isAvailable(long sequence) {
+            return available.get((int) sequence & mask) == (int) (sequence >>> indexShift);
+        }
+
+        @Override
+        public void run() {
+            long next = consumed.get() + 1;
+            int idle = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                // 1.取出从next开始连续已发布的订单，最多batchSize个
+                long highest = cursor.get();
+                List<VoucherOrder> orders = new ArrayList<>();
+                long sequence = next;
+                while (sequence <= highest && orders.size() < batchSize && isAvailable(sequence)) {
+                    OrderEvent event = entries[(int) sequence & mask];
+                    VoucherOrder voucherOrder = new VoucherOrder();
+                    voucherOrder.setId(event.id);
+                    voucherOrder.setUserId(event.userId);
+                    voucherOrder.setVoucherId(event.voucherId);
+                    orders.add(voucherOrder);
+                    sequence++;
+                }
+                if (orders.isEmpty()) {
+                    // 2.没有订单时先让出CPU，持续空闲后短暂休眠
+                    if (++idle < 100) {
+                        Thread.yield();
+                    } else {
+                        LockSupport.parkNanos(1_000_000);
+                    }
+                    continue;
+                }
+                idle = 0;
+                // 3.订单已经复制出来，释放槽位给生产者
+                consumed.lazySet(sequence - 1);
+                next = sequence;
+                // 4.创建订单
+                handleOrders(orders);
+            }
+        }
+    }
+
+    //批量模式下一个事务创建整批订单，失败时退回逐条处理
+    private void handleOrders(List<VoucherOrder> orders) {
+        if (batchEnabled && orders.size() > 1) {
+            try {
+                proxy.createVoucherOrderBatch(orders);
+                orderTimeoutScheduler.schedule(orders);
+                orderStatusTracker.markCreated(orders);
+                return;
+            } catch (Exception e) {
+                log.error("批量处理订单异常", e);
+            }
+        }
+        orders.forEach(this::handleOrder);
+    }
+
+    //没有pending-list可以重试，失败的订单标记为失败，并撤销seckill.lua在Redis中的扣减
+    private void handleOrder(VoucherOrder voucherOrder) {
+        List<VoucherOrder> orders = Collections.singletonList(voucherOrder);
+        boolean created;
+        try {
+            created = proxy.createVoucherOrder(voucherOrder);
+        } catch (Exception e) {
+            log.error("处理订单异常：" + voucherOrder.getId(), e);
+            // 事务已经回滚，数据库中没有这个订单：归还库存并移出已购买用户，用户可以重新抢购
+            compensate(voucherOrder, true);
+            orderStatusTracker.markFailed(orders);
+            return;
+        }
+        if (created) {
+            orderTimeoutScheduler.schedule(orders);
+            orderStatusTracker.markCreated(orders);
+        } else {
+            // 用户已经用别的订单买过，只归还库存，保留已购买记录
+            compensate(voucherOrder, false);
+            orderStatusTracker.markFailed(orders);
+        }
+    }
+
+    //归还失败时由库存对账修复
+    private void compensate(VoucherOrder voucherOrder, boolean removeBuyer) {
+        try {
+            if (removeBuyer) {
+                stockReturner.returnOrders(Collections.singletonList(voucherOrder));
+            } else {
+                stockReturner.returnStock(voucherOrder.getVoucherId(), 1);
+            }
+        } catch (Exception e) {
+            log.error("归还订单库存失败：" + voucherOrder.getId(), e);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_VERSION_KEY;
+
+/**
+ * 秒杀券本地售罄标记
+ * 某个实例第一次从lua脚本得知库存不足时，标记并通过Redis发布订阅通知其它实例，
+ * 之后的请求直接在JVM内拒绝，不再生成订单id，也不再访问Redis。
+ * 售罄和回补消息都带有 seckill:soldout:version:{id} 自增得到的版本号，晚到的旧消息被忽略；
+ * 标记只在 seckill.sold-out.ttl-ms 内有效，过期后由下一个请求重新执行秒杀脚本确认，
+ * 即使售罄的判断和库存回补交错，也不会一直拒绝还有库存的券
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutMarker implements MessageListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    @Value("${seckill.sold-out.ttl-ms:5000}")
+    private long ttlMs;
+
+    //voucherId -> 最新版本的标记
+    private final Map<Long, Marker> markers = new ConcurrentHashMap<>();
+
+    //一个秒杀券的标记，soldOut为false表示已回补
+    private static class Marker {
+        private final long version;
+        private final boolean soldOut;
+        private final long expireAt;
+
+        private Marker(long version, boolean soldOut, long expireAt) {
+            this.version = version;
+            this.soldOut = soldOut;
+            this.expireAt = expireAt;
+        }
+    }
+
+    public SeckillSoldOutMarker(StringRedisTemplate stringRedisTemplate,
+                                RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_RESTOCK_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Marker marker = markers.get(voucherId);
+        return marker != null && marker.soldOut && System.currentTimeMillis() < marker.expireAt;
+    }
+
+    /**
+     * 标记售罄，本实例已经有有效的售罄标记时不再广播
+     */
+    public void markSoldOut(Long voucherId) {
+        if (isSoldOut(voucherId)) {
+            return;
+        }
+        long version = nextVersion(voucherId);
+        apply(voucherId, version, true);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId + ":" + version);
+    }
+
+    /**
+     * 库存回补后清除所有实例的售罄标记
+     */
+    public void clear(Long voucherId) {
+        long version = nextVersion(voucherId);
+        apply(voucherId, version, false);
+        stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId + ":" + version);
+    }
+
+    //INCR seckill:soldout:version:{id}，所有实例的售罄和回补按这个版本号排序
+    private long nextVersion(Long voucherId) {
+        Long version = stringRedisTemplate.opsForValue().increment(SECKILL_SOLD_OUT_VERSION_KEY + voucherId);
+        return version == null ? 0 : version;
+    }
+
+    //只接受比本地更新的版本
+    private void apply(Long voucherId, long version, boolean soldOut) {
+        long expireAt = System.currentTimeMillis() + ttlMs;
+        markers.compute(voucherId, (id, old) ->
+                old != null && old.version >= version ? old : new Marker(version, soldOut, expireAt));
+    }
+
+    //消息内容为 voucherId:version
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.indexOf(':');
+        Long voucherId;
+        long version;
+        try {
+            voucherId = Long.valueOf(body.substring(0, index));
+            version = Long.parseLong(body.substring(index + 1));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            log.warn("忽略无效的售罄消息，channel={}，body={}", channel, body);
+            return;
+        }
+        apply(voucherId, version, SECKILL_SOLD_OUT_CHANNEL.equals(channel));
+    }
+}
@@ -0,0 +1,155 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_SEGMENTS_KEY;
+
+/**
+ * 秒杀库存租约
+ * 每个实例用lease.lua从 seckill:stock: 中一次租用一批库存，之后在本地原子计数器上扣减，
+ * 本地用完再续租；秒杀结束或实例关闭时把没卖出的库存还回Redis
+ */
+@Slf4j
+@Component
+public class SeckillStockLeaser {
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    //每次向Redis租用的库存数量
+    @Value("${seckill.stock.lease-size:100}")
+    private int leaseSize;
+
+    //Redis库存为0后，间隔多久再尝试续租（其它实例可能归还库存）
+    @Value("${seckill.stock.lease-retry-ms:1000}")
+    private long leaseRetryMs;
+
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    private static class Lease {
+        private final AtomicInteger stock = new AtomicInteger();
+        private volatile long exhaustedUntil;
+        private volatile LocalDateTime endTime;
+    }
+
+    /**
+     * 从本地租约中扣减一个库存，本地用完时向Redis续租
+     * @return false表示Redis中也没有库存了
+     */
+    public boolean tryAcquire(Long voucherId) {
+        Lease lease = leases.computeIfAbsent(voucherId, id -> new Lease());
+        while (true) {
+            int current = lease.stock.get();
+            if (current > 0) {
+                if (lease.stock.compareAndSet(current, current - 1)) {
+                    return true;
+                }
+                continue;
+            }
+            // 本地库存用完，同一个券只让一个线程去续租
+            synchronized (lease) {
+                if (lease.stock.get() > 0) {
+                    continue;
+                }
+                if (System.currentTimeMillis() < lease.exhaustedUntil) {
+                    return false;
+                }
+                if (lease.endTime == null) {
+                    SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+                    lease.endTime = voucher == null ? LocalDateTime.MAX : voucher.getEndTime();
+                }
+                Long leased = stringRedisTemplate.execute(
+                        LEASE_SCRIPT,
+                        Collections.emptyList(),
+                        voucherId.toString(), String.valueOf(leaseSize)
+                );
+                if (leased == null || leased <= 0) {
+                    lease.exhaustedUntil = System.currentTimeMillis() + leaseRetryMs;
+                    return false;
+                }
+                lease.stock.addAndGet(leased.intValue());
+            }
+        }
+    }
+
+    /**
+     * 扣减了本地库存但没有下单成功（例如重复下单），把库存放回本地租约
+     */
+    public void release(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.stock.incrementAndGet();
+        }
+    }
+
+    /**
+     * 把本地没卖出的库存还给Redis
+     */
+    public void returnLease(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease == null) {
+            return;
+        }
+        int remaining = lease.stock.getAndUpdate(current -> Math.min(current, 0));
+        if (remaining <= 0) {
+            return;
+        }
+        // 分段库存还到第0段
+        String stockKey = SECKILL_STOCK_KEY + voucherId;
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_STOCK_SEGMENTS_KEY + voucherId))) {
+            stockKey = stockKey + ":0";
+        }
+        stringRedisTemplate.opsForValue().increment(stockKey, remaining);
+        log.info("归还秒杀库存租约，voucherId={}，数量={}", voucherId, remaining);
+    }
+
+    //秒杀结束后归还剩余库存
+    @Scheduled(fixedDelayString = "${seckill.stock.lease-check-ms:10000}")
+    public void returnExpiredLeases() {
+        LocalDateTime now = LocalDateTime.now();
+        leases.forEach((voucherId, lease) -> {
+            if (lease.endTime != null && lease.endTime.isBefore(now)) {
+                returnLease(voucherId);
+            }
+        });
+    }
+
+    @PreDestroy
+    private void returnAllLeases() {
+        leases.keySet().forEach(voucherId -> {
+            try {
+                returnLease(voucherId);
+            } catch (Exception e) {
+                log.error("归还秒杀库存租约失败，voucherId=" + voucherId, e);
+            }
+        });
+    }
+}
@@ -0,0 +1,294 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存对账
+ * 定期核对每个未结束的秒杀券：
+ * Redis中 剩余库存 + 已购买用户数 应等于总库存；MySQL中 剩余库存 + 未取消订单数 应等于总库存；
+ * Redis中的已购买用户数应等于MySQL中的未取消订单数（订单消息处理失败、转入死信时两边会不一致）。
+ * 差异记录到日志并通过 /monitor/stock-reconcile 查看；policy为repair时，同一差异连续出现confirm-runs次后自动修复。
+ * 秒杀进行中，已经扣减Redis库存、订单还在队列中的用户在数据库中暂时没有订单：
+ * 只有连续confirm-runs次对账都没有订单、并且不在订单队列中的用户才会被当成订单丢失
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+
+    private static final String POLICY_REPAIR = "repair";
+
+    private static final DefaultRedisScript<List> RECONCILE_SCRIPT;
+
+    static {
+        RECONCILE_SCRIPT = new DefaultRedisScript<>();
+        RECONCILE_SCRIPT.setLocation(new ClassPathResource("reconcile.lua"));
+        RECONCILE_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private SeckillStockReturner stockReturner;
+
+    @Resource
+    private OrderQueue orderQueue;
+
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
+    //只读的可重复读事务：分段统计订单和读取库存在同一个快照中完成，期间写入的订单不会造成临时差异
+    private TransactionTemplate snapshotTemplate;
+
+    @Value("${seckill.reconcile.enabled:true}")
+    private boolean enabled;
+
+    @Value("${seckill.reconcile.chunk-size:1000}")
+    private int chunkSize;
+
+    @Value("${seckill.reconcile.policy:report}")
+    private String policy;
+
+    @Value("${seckill.reconcile.confirm-runs:2}")
+    private int confirmRuns;
+
+    //租约模式下一部分库存在各实例本地，Redis库存无法核对
+    @Value("${seckill.stock.lease-enabled:false}")
+    private boolean stockLeaseEnabled;
+
+    //上一次对账的结果，voucherId -> 对账数据
+    private volatile Map<Long, Drift> lastReport = Collections.emptyMap();
+
+    //一个秒杀券的对账数据
+    private static class Drift {
+        private long total;
+        private long redisStock;
+        private long redisBuyers;
+        private long dbStock;
+        private long dbOrders;
+        //总库存 - Redis剩余库存 - Redis已购买用户数，租约模式下为null
+        private Long redisDrift;
+        //总库存 - MySQL剩余库存 - MySQL未取消订单数
+        private long dbDrift;
+        //Redis已购买用户数 - MySQL未取消订单数
+        private long buyerDrift;
+        //同样的差异已经连续出现的次数
+        private int stableRuns;
+        //Redis中有、数据库中没有订单的用户 -> 连续出现的次数，只在repair策略下统计
+        private Map<Long, Integer> lostBuyers = Collections.emptyMap();
+        private final List<String> repaired = new ArrayList<>();
+
+        private boolean hasDrift() {
+            return (redisDrift != null && redisDrift != 0) || dbDrift != 0 || buyerDrift != 0;
+        }
+
+        private boolean sameDrift(Drift other) {
+            return other != null && Objects.equals(redisDrift, other.redisDrift)
+                    && dbDrift == other.dbDrift && buyerDrift == other.buyerDrift;
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("total", total);
+            map.put("redisStock", redisStock);
+            map.put("redisBuyers", redisBuyers);
+            map.put("dbStock", dbStock);
+            map.put("dbOrders", dbOrders);
+            map.put("redisDrift", redisDrift);
+            map.put("dbDrift", dbDrift);
+            map.put("buyerDrift", buyerDrift);
+            map.put("stableRuns", stableRuns);
+            map.put("lostBuyers", lostBuyers.size());
+            map.put("repaired", repaired);
+            return map;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        snapshotTemplate = new TransactionTemplate(transactionManager);
+        snapshotTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+        snapshotTemplate.setReadOnly(true);
+    }
+
+    /**
+     * 最近一次对账的结果
+     * @return voucherId -> 对账数据
+     */
+    public Map<Long, Map<String, Object>> lastReport() {
+        Map<Long, Map<String, Object>> report = new LinkedHashMap<>();
+        lastReport.forEach((voucherId, drift) -> report.put(voucherId, drift.toMap()));
+        return report;
+    }
+
+    @Scheduled(fixedDelayString = "${seckill.reconcile.interval-ms:300000}",
+            initialDelayString = "${seckill.reconcile.interval-ms:300000}")
+    public void reconcile() {
+        if (!enabled) {
+            return;
+        }
+        List<SeckillVoucher> vouchers = seckillVoucherMapper.selectList(
+                new QueryWrapper<SeckillVoucher>().gt("end_time", LocalDateTime.now()));
+        Map<Long, Drift> previous = lastReport;
+        Map<Long, Drift> report = new LinkedHashMap<>();
+        for (SeckillVoucher voucher : vouchers) {
+            Long voucherId = voucher.getVoucherId();
+            try {
+                Drift drift = measure(voucherId);
+                if (drift == null) {
+                    // 还没有预热到Redis
+                    continue;
+                }
+                Drift last = previous.get(voucherId);
+                drift.stableRuns = drift.sameDrift(last) ? last.stableRuns + 1 : 1;
+                if (drift.hasDrift()) {
+                    if (POLICY_REPAIR.equals(policy) && drift.buyerDrift > 0) {
+                        drift.lostBuyers = findLostBuyers(voucherId, last);
+                    }
+                    log.warn("秒杀库存对账存在差异，voucherId={}，{}", voucherId, drift.toMap());
+                    if (POLICY_REPAIR.equals(policy) && drift.stableRuns >= confirmRuns) {
+                        repair(voucherId, drift);
+                    }
+                }
+                report.put(voucherId, drift);
+            } catch (Exception e) {
+                log.error("秒杀库存对账失败，voucherId=" + voucherId, e);
+            }
+        }
+        lastReport = report;
+    }
+
+    //先原子读取Redis中的数据，再在同一个只读快照中分段统计数据库中的订单、读取数据库库存
+    private Drift measure(Long voucherId) {
+        List<?> redis = stringRedisTemplate.execute(RECONCILE_SCRIPT,
+                Collections.emptyList(), voucherId.toString());
+        if (redis == null || redis.isEmpty()) {
+            return null;
+        }
+        Drift drift = new Drift();
+        drift.total = ((Number) redis.get(0)).longValue();
+        drift.redisStock = ((Number) redis.get(1)).longValue();
+        drift.redisBuyers = ((Number) redis.get(2)).longValue();
+        snapshotTemplate.executeWithoutResult(status -> {
+            drift.dbOrders = countOrders(voucherId);
+            drift.dbStock = seckillVoucherMapper.selectById(voucherId).getStock();
+        });
+        drift.redisDrift = stockLeaseEnabled ? null : drift.total - drift.redisStock - drift.redisBuyers;
+        drift.dbDrift = drift.total - drift.dbStock - drift.dbOrders;
+        drift.buyerDrift = drift.redisBuyers - drift.dbOrders;
+        return drift;
+    }
+
+    //按主键分段统计未取消的订单，每段走 idx_voucher_id 的一次范围扫描
+    private long countOrders(Long voucherId) {
+        long lastId = 0;
+        long sold = 0;
+        while (true) {
+            Map<String, Object> chunk = voucherOrderMapper.countChunk(voucherId, lastId, chunkSize);
+            long rows = ((Number) chunk.get("rows")).longValue();
+            if (rows == 0) {
+                return sold;
+            }
+            sold += ((Number) chunk.get("sold")).longValue();
+            if (rows < chunkSize) {
+                return sold;
+            }
+            lastId = ((Number) chunk.get("lastId")).longValue();
+        }
+    }
+
+    //1.连续confirm-runs次Redis中有、数据库中没有的用户：订单已经丢失，移出已购买用户并归还库存，用户可以重新抢购
+    //2.Redis库存：按 总库存 - 已购买用户数 修正
+    //3.数据库库存：按 总库存 - 未取消订单数 修正
+    private void repair(Long voucherId, Drift drift) {
+        if (drift.buyerDrift > 0) {
+            int removed = removeLostBuyers(voucherId, drift.lostBuyers);
+            if (removed > 0) {
+                drift.repaired.add("移除订单已丢失的用户" + removed + "个");
+            }
+        }
+        if (drift.redisDrift != null && drift.redisDrift > 0) {
+            // 少了的库存按归还处理，同时增加等待室名额
+            stockReturner.returnStock(voucherId, drift.redisDrift);
+            drift.repaired.add("Redis库存调整" + drift.redisDrift);
+        } else if (drift.redisDrift != null && drift.redisDrift < 0) {
+            stringRedisTemplate.opsForValue().increment(stockReturner.stockKey(voucherId), drift.redisDrift);
+            drift.repaired.add("Redis库存调整" + drift.redisDrift);
+        }
+        if (drift.dbDrift != 0) {
+            seckillVoucherMapper.increaseStockBatch(Collections.singletonMap(voucherId, (int) drift.dbDrift));
+            drift.repaired.add("数据库库存调整" + drift.dbDrift);
+        }
+        log.warn("秒杀库存对账已修复，voucherId={}，{}", voucherId, drift.repaired);
+    }
+
+    //SSCAN seckill:order:{id}，分段在数据库中查找没有订单的用户，再去掉订单还在队列中的用户；
+    //返回这些用户连续出现的次数，上一次没有出现的从1开始
+    private Map<Long, Integer> findLostBuyers(Long voucherId, Drift last) {
+        String orderKey = SECKILL_ORDER_KEY + voucherId;
+        Map<Long, Integer> lost = new HashMap<>();
+        Map<Long, Integer> previous = last == null ? Collections.emptyMap() : last.lostBuyers;
+        ScanOptions options = ScanOptions.scanOptions().count(chunkSize).build();
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(orderKey, options)) {
+            List<Long> chunk = new ArrayList<>(chunkSize);
+            while (cursor.hasNext()) {
+                chunk.add(Long.valueOf(cursor.next()));
+                if (chunk.size() >= chunkSize || !cursor.hasNext()) {
+                    Set<Long> buyers = new HashSet<>(voucherOrderMapper.selectBuyers(voucherId, chunk));
+                    chunk.stream().filter(userId -> !buyers.contains(userId))
+                            .forEach(userId -> lost.put(userId, previous.getOrDefault(userId, 0) + 1));
+                    chunk.clear();
+                }
+            }
+        }
+        if (!lost.isEmpty()) {
+            lost.keySet().removeAll(orderQueue.queuedBuyers(voucherId));
+        }
+        return lost;
+    }
+
+    //移出连续confirm-runs次确认订单丢失的用户并归还库存
+    private int removeLostBuyers(Long voucherId, Map<Long, Integer> lostBuyers) {
+        Object[] lost = lostBuyers.entrySet().stream()
+                .filter(e -> e.getValue() >= confirmRuns)
+                .map(e -> e.getKey().toString())
+                .toArray();
+        if (lost.length == 0) {
+            return 0;
+        }
+        // SREM返回真正移除的数量，只归还这么多库存
+        Long removed = stringRedisTemplate.opsForSet().remove(SECKILL_ORDER_KEY + voucherId, lost);
+        if (removed != null && removed > 0) {
+            stockReturner.returnStock(voucherId, removed);
+        }
+        return removed == null ? 0 : removed.intValue();
+    }
+}
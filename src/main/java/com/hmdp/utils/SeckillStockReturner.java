@@ -0,0 +1,82 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 把没有真正卖出的秒杀库存还回Redis：超时取消、对账修复、订单写入数据库失败时使用
+ * 归还库存的同时增加等待室的放行名额 seckill:returned:{id}，否则名额已经发完，归还的库存无法再通过等待室卖出；
+ * 最后清除所有实例的售罄标记
+ */
+@Component
+public class SeckillStockReturner {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillSoldOutMarker soldOutMarker;
+
+    /**
+     * 归还订单占用的库存，并移出已购买用户，用户可以重新抢购
+     * @param orders 没有卖出的订单
+     */
+    public void returnOrders(Collection<VoucherOrder> orders) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        Map<Long, List<VoucherOrder>> byVoucher = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        Map<Long, String> stockKeys = byVoucher.keySet().stream()
+                .collect(Collectors.toMap(voucherId -> voucherId, this::stockKey));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            byVoucher.forEach((voucherId, voucherOrders) -> {
+                conn.incrBy(stockKeys.get(voucherId), voucherOrders.size());
+                conn.incrBy(SECKILL_RETURNED_STOCK_KEY + voucherId, voucherOrders.size());
+                String[] userIds = voucherOrders.stream().map(o -> o.getUserId().toString()).toArray(String[]::new);
+                conn.sRem(SECKILL_ORDER_KEY + voucherId, userIds);
+            });
+            return null;
+        });
+        byVoucher.keySet().forEach(soldOutMarker::clear);
+    }
+
+    /**
+     * 只归还库存，已购买用户由调用方处理
+     * @param voucherId 优惠券id
+     * @param count 归还数量，大于0
+     */
+    public void returnStock(Long voucherId, long count) {
+        String stockKey = stockKey(voucherId);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.incrBy(stockKey, count);
+            conn.incrBy(SECKILL_RETURNED_STOCK_KEY + voucherId, count);
+            return null;
+        });
+        soldOutMarker.clear(voucherId);
+    }
+
+    /**
+     * 库存key，分段库存归还到第0段，seckill.lua在其它段卖完时会继续找到它
+     */
+    public String stockKey(Long voucherId) {
+        String stockKey = SECKILL_STOCK_KEY + voucherId;
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_STOCK_SEGMENTS_KEY + voucherId))) {
+            stockKey = stockKey + ":0";
+        }
+        return stockKey;
+    }
+}
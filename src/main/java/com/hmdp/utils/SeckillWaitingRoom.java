@@ -0,0 +1,61 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+
+/**
+ * 秒杀等待室
+ * 每个用户第一次抢购时用ticket.lua领取一个排队号，只有前 总库存*multiplier 个号能进入秒杀，
+ * 其余请求不再执行秒杀脚本，lua脚本和stream的压力只和库存有关，与流量无关；
+ * 超时取消等归还的库存由SeckillStockReturner记录，按同样的倍数增加名额
+ */
+@Component
+public class SeckillWaitingRoom {
+
+    /**
+     * 放行
+     */
+    public static final int ADMITTED = 0;
+    /**
+     * 名额已满，库存也已卖完
+     */
+    public static final int SOLD_OUT = 1;
+    /**
+     * 名额已满，但库存还没卖完
+     */
+    public static final int WAIT = 2;
+
+    private static final DefaultRedisScript<Long> TICKET_SCRIPT;
+
+    static {
+        TICKET_SCRIPT = new DefaultRedisScript<>();
+        TICKET_SCRIPT.setLocation(new ClassPathResource("ticket.lua"));
+        TICKET_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //放行人数相对总库存的倍数，大于1是为了给重复下单等失败的请求留出余量
+    @Value("${seckill.waiting-room.multiplier:1.5}")
+    private double multiplier;
+
+    /**
+     * 领取排队号
+     * @return ADMITTED、SOLD_OUT或WAIT
+     */
+    public int enter(Long voucherId, Long userId) {
+        Long result = stringRedisTemplate.execute(
+                TICKET_SCRIPT,
+                Collections.emptyList(),
+                voucherId.toString(), userId.toString(), String.valueOf(multiplier)
+        );
+        return result == null ? ADMITTED : result.intValue();
+    }
+}
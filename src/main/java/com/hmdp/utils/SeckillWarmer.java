@@ -0,0 +1,174 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀券预热
+ * 把秒杀券的库存、开始结束时间和已购买用户写入Redis，seckill.lua只依赖Redis完成所有校验。
+ * 启动时和之后每隔一段时间检查所有未结束的秒杀券，Redis重启丢失数据后会从MySQL重新加载
+ */
+@Slf4j
+@Component
+public class SeckillWarmer {
+
+    //订单状态：已取消，不算已购买
+    private static final int ORDER_STATUS_CANCELLED = 4;
+
+    private static final int BUYER_PAGE_SIZE = 1000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private OrderQueue orderQueue;
+
+    //库存分段数，大于1时库存拆分到 seckill:stock:{id}:0 ~ seckill:stock:{id}:n-1
+    @Value("${seckill.stock.segments:1}")
+    private int stockSegments;
+
+    /**
+     * 新建秒杀券时写入Redis，覆盖已有数据
+     */
+    public void preload(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        Map<String, String> entries = stockEntries(voucherId, voucher.getStock());
+        // 总库存，等待室按它计算放行人数
+        entries.put(SECKILL_TOTAL_STOCK_KEY + voucherId, voucher.getStock().toString());
+        // 归还的库存从0开始计算
+        entries.put(SECKILL_RETURNED_STOCK_KEY + voucherId, "0");
+        stringRedisTemplate.opsForValue().multiSet(entries);
+        saveTimeWindow(voucher);
+    }
+
+    @Scheduled(fixedDelayString = "${seckill.warm-up.interval-ms:30000}")
+    public void warmUp() {
+        List<SeckillVoucher> vouchers = seckillVoucherMapper.selectList(
+                new QueryWrapper<SeckillVoucher>().gt("end_time", LocalDateTime.now()));
+        for (SeckillVoucher voucher : vouchers) {
+            try {
+                warmUp(voucher);
+            } catch (Exception e) {
+                log.error("秒杀券预热失败，voucherId=" + voucher.getVoucherId(), e);
+            }
+        }
+    }
+
+    //Redis中已经有库存时只刷新时间窗口，库存以Redis为准
+    //没有库存说明数据丢失了，先加载已购买用户，再写库存，最后写时间窗口；
+    //seckill.lua在时间窗口不存在时拒绝请求，所以加载完成之前不会放进任何请求
+    //有库存但没有总库存的是旧版本写入的秒杀券，库存值可能不对（早期写入的是优惠券id），以数据库为准重写一次
+    private void warmUp(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        String totalKey = SECKILL_TOTAL_STOCK_KEY + voucherId;
+        boolean loaded = Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_STOCK_KEY + voucherId))
+                || Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_STOCK_SEGMENTS_KEY + voucherId));
+        if (!loaded) {
+            int buyers = loadBuyers(voucherId);
+            // MSETNX，多个实例同时预热时只有一个能写入
+            Boolean stored = stringRedisTemplate.opsForValue()
+                    .multiSetIfAbsent(stockEntries(voucherId, voucher.getStock()));
+            // 总库存总是SETNX：写入库存的实例在写总库存之前退出时，由之后的预热补上
+            stringRedisTemplate.opsForValue().setIfAbsent(totalKey, String.valueOf(voucher.getStock() + buyers));
+            if (Boolean.TRUE.equals(stored)) {
+                log.info("秒杀券已从数据库加载，voucherId={}，库存={}，已购买用户={}", voucherId, voucher.getStock(), buyers);
+            }
+        } else if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(totalKey))) {
+            migrateLegacyStock(voucher);
+        }
+        saveTimeWindow(voucher);
+    }
+
+    //旧版本的库存：数据库库存减去还在队列中没有写入数据库的订单，就是Redis中应有的库存
+    //先SETNX总库存，只有写入成功的实例重写库存，多个实例同时预热时只迁移一次
+    private void migrateLegacyStock(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        int queued = orderQueue.queuedBuyers(voucherId).size();
+        int buyers = loadBuyers(voucherId);
+        Boolean claimed = stringRedisTemplate.opsForValue().setIfAbsent(SECKILL_TOTAL_STOCK_KEY + voucherId,
+                String.valueOf(voucher.getStock() + buyers));
+        if (!Boolean.TRUE.equals(claimed)) {
+            return;
+        }
+        int stock = Math.max(0, voucher.getStock() - queued);
+        stringRedisTemplate.opsForValue().multiSet(stockEntries(voucherId, stock));
+        log.info("旧版本的秒杀库存已按数据库重写，voucherId={}，库存={}，队列中的订单={}，已购买用户={}",
+                voucherId, stock, queued, buyers);
+    }
+
+    //按主键分页加载已购买用户到 seckill:order:{voucherId}
+    private int loadBuyers(Long voucherId) {
+        String orderKey = SECKILL_ORDER_KEY + voucherId;
+        long lastId = 0;
+        int total = 0;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId)
+                    .ne("status", ORDER_STATUS_CANCELLED)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + BUYER_PAGE_SIZE));
+            if (orders.isEmpty()) {
+                return total;
+            }
+            String[] userIds = orders.stream().map(o -> o.getUserId().toString()).toArray(String[]::new);
+            stringRedisTemplate.opsForSet().add(orderKey, userIds);
+            total += orders.size();
+            lastId = orders.get(orders.size() - 1).getId();
+        }
+    }
+
+    //库存key：不分段时为 seckill:stock:{id}；分段时为各段库存和分段数
+    private Map<String, String> stockEntries(Long voucherId, int stock) {
+        Map<String, String> entries = new HashMap<>(stockSegments + 2);
+        if (stockSegments <= 1) {
+            entries.put(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            return entries;
+        }
+        // 库存平均拆分到各段，余数分给前几段
+        int base = stock / stockSegments;
+        int remainder = stock % stockSegments;
+        for (int i = 0; i < stockSegments; i++) {
+            int segmentStock = base + (i < remainder ? 1 : 0);
+            entries.put(SECKILL_STOCK_KEY + voucherId + ":" + i, String.valueOf(segmentStock));
+        }
+        entries.put(SECKILL_STOCK_SEGMENTS_KEY + voucherId, String.valueOf(stockSegments));
+        return entries;
+    }
+
+    //时间窗口 hash seckill:time:{id} begin end，毫秒时间戳
+    private void saveTimeWindow(SeckillVoucher voucher) {
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(toEpochMilli(voucher.getBeginTime())));
+        window.put("end", String.valueOf(toEpochMilli(voucher.getEndTime())));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_TIME_KEY + voucher.getVoucherId(), window);
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
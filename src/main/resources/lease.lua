@@ -0,0 +1,35 @@
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.希望租用的库存数量
+local want = tonumber(ARGV[2])
+
+-- 2.数据key
+-- 2.1.库存key
+local stockKey = 'seckill:stock:' .. voucherId
+-- 2.2.库存分段数，不存在说明没有分段
+local segments = tonumber(redis.call('get', 'seckill:segments:' .. voucherId) or '0')
+
+-- 3.从库存中最多取出want个，返回实际取出的数量
+local keys = {}
+if(segments > 1) then
+    for i = 0, segments - 1 do
+        keys[#keys + 1] = stockKey .. ':' .. i
+    end
+else
+    keys[1] = stockKey
+end
+local leased = 0
+for _, key in ipairs(keys) do
+    local stock = tonumber(redis.call('get', key) or '0')
+    if(stock > 0) then
+        local n = math.min(stock, want - leased)
+        -- decrby key n
+        redis.call('decrby', key, n)
+        leased = leased + n
+    end
+    if(leased >= want) then
+        break
+    end
+end
+return leased
@@ -0,0 +1,26 @@
+-- 滑动窗口限流，KEYS[1]为全局key，KEYS[2]为用户key（没有用户限流时不传）
+-- 1.参数列表
+-- 1.1.当前时间，毫秒
+local now = tonumber(ARGV[1])
+-- 1.2.窗口长度，毫秒
+local window = tonumber(ARGV[2])
+-- 1.3.本次请求的唯一标示
+local member = ARGV[3]
+-- 1.4.各个key的限制次数，与KEYS一一对应
+local limits = {tonumber(ARGV[4]), tonumber(ARGV[5])}
+
+-- 2.先检查所有key，全部通过后再记录，被拒绝的请求不占用名额
+for i, key in ipairs(KEYS) do
+    -- 2.1.移除窗口之外的记录 zremrangebyscore key 0 now-window
+    redis.call('zremrangebyscore', key, 0, now - window)
+    -- 2.2.窗口内请求数已达上限，返回0
+    if(redis.call('zcard', key) >= limits[i]) then
+        return 0
+    end
+end
+-- 3.记录本次请求
+for _, key in ipairs(KEYS) do
+    redis.call('zadd', key, now, member)
+    redis.call('pexpire', key, window)
+end
+return 1
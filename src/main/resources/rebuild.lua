@@ -0,0 +1,16 @@
+-- 缓存重建的写回，KEYS为 锁key1 缓存key1 锁key2 缓存key2 ...
+-- ARGV[1]是重建任务持有锁的标示，ARGV[2]是空值的过期时间（秒），ARGV[i + 2]是第i个缓存key的值，空字符串表示空值
+-- 只写入锁仍然由本任务持有的key：任务超时后锁已经释放，可能已经被下一次重建获取，旧任务不能再覆盖
+local written = 0
+for i = 1, #KEYS, 2 do
+    if (redis.call('GET', KEYS[i]) == ARGV[1]) then
+        local value = ARGV[(i + 1) / 2 + 2]
+        if (value == '') then
+            redis.call('SET', KEYS[i + 1], value, 'EX', ARGV[2])
+        else
+            redis.call('SET', KEYS[i + 1], value)
+        end
+        written = written + 1
+    end
+end
+return written
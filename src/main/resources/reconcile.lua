@@ -0,0 +1,17 @@
+-- 对账时原子地读取一个秒杀券在Redis中的数据，返回 {总库存, 剩余库存, 已购买用户数}，没有预热时返回nil
+local voucherId = ARGV[1]
+local total = redis.call('get', 'seckill:total:' .. voucherId)
+if(not total) then
+    return nil
+end
+-- 分段库存时累加各段
+local segments = tonumber(redis.call('get', 'seckill:segments:' .. voucherId) or '0')
+local stock = 0
+if(segments > 1) then
+    for i = 0, segments - 1 do
+        stock = stock + tonumber(redis.call('get', 'seckill:stock:' .. voucherId .. ':' .. i) or '0')
+    end
+else
+    stock = tonumber(redis.call('get', 'seckill:stock:' .. voucherId) or '0')
+end
+return {tonumber(total), stock, redis.call('scard', 'seckill:order:' .. voucherId)}
@@ -0,0 +1,6 @@
+-- 续期：KEYS[1]的值仍然是自己的标示ARGV[1]时，把过期时间重置为ARGV[2]秒
+if (redis.call('GET', KEYS[1]) == ARGV[1]) then
+    return redis.call('EXPIRE', KEYS[1], ARGV[2])
+end
+-- 已经过期并被其它实例占用
+return 0
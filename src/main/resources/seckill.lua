@@ -5,16 +5,63 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 -- 1.3.订单id
 local orderId = ARGV[3]
+-- 1.4.订单stream分片数
+local shardCount = tonumber(ARGV[4] or '1')
+-- 1.5.库存是否已经在应用本地的租约中扣减过
+local stockLeased = ARGV[5] == '1'
+-- 1.6.当前时间，毫秒
+local now = tonumber(ARGV[6])
+-- 1.7.订单状态记录的有效期，秒
+local statusTtl = ARGV[7]
+-- 1.8.是否由脚本把订单写入stream，使用进程内队列时为0，由应用在脚本返回后写入
+local publishToStream = (ARGV[8] or '1') == '1'
 
 -- 2.数据key
 -- 2.1.库存key
 local stockKey = 'seckill:stock:' .. voucherId
 -- 2.2.订单key
 local orderKey = 'seckill:order:' .. voucherId
+-- 2.3.订单stream key，按 voucherId % shardCount 选择分片，与VoucherOrderServiceImpl保持一致
+local streamKey = 'stream.orders'
+if (shardCount > 1) then
+    streamKey = streamKey .. ':' .. (tonumber(voucherId) % shardCount)
+end
+
+-- 2.4.库存分段数，不存在说明没有分段
+local segments = tonumber(redis.call('get', 'seckill:segments:' .. voucherId) or '0')
 
 -- 3.脚本业务
+-- 3.0.判断是否在秒杀时间内 hmget seckill:time:{id} begin end
+--     时间窗口由预热写入，不存在说明秒杀券还没有加载，按未开始处理
+local window = redis.call('hmget', 'seckill:time:' .. voucherId, 'begin', 'end')
+if(not window[1] or now < tonumber(window[1])) then
+    -- 尚未开始，返回3
+    return 3
+end
+if(window[2] and now > tonumber(window[2])) then
+    -- 已经结束，返回4
+    return 4
+end
 -- 3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get', stockKey)) <= 0) then
+if(stockLeased) then
+    -- 库存已由应用本地租约扣减，这里只做一人一单校验
+elseif(segments > 1) then
+    -- 分段库存：按用户id选择起始段，该段卖完时依次尝试下一段
+    local start = tonumber(userId) % segments
+    local found = false
+    for i = 0, segments - 1 do
+        local segmentKey = stockKey .. ':' .. ((start + i) % segments)
+        if(tonumber(redis.call('get', segmentKey) or '0') > 0) then
+            stockKey = segmentKey
+            found = true
+            break
+        end
+    end
+    if(not found) then
+        -- 3.2.所有段都卖完了，返回1
+        return 1
+    end
+elseif(tonumber(redis.call('get', stockKey) or '0') <= 0) then
     -- 3.2.库存不足，返回1
     return 1
 end
@@ -24,9 +71,15 @@ if(redis.call('sismember', orderKey, userId) == 1) then
     return 2
 end
 -- 3.4.扣库存 incrby stockKey -1
-redis.call('incrby', stockKey, -1)
+if(not stockLeased) then
+    redis.call('incrby', stockKey, -1)
+end
 -- 3.5.下单（保存用户）sadd orderKey userId
 redis.call('sadd', orderKey, userId)
 -- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+if(publishToStream) then
+    redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+end
+-- 3.7.记录订单状态为处理中 set seckill:status:{userId}:{orderId} PENDING EX statusTtl
+redis.call('set', 'seckill:status:' .. userId .. ':' .. orderId, 'PENDING', 'EX', statusTtl)
 return 0
\ No newline at end of file
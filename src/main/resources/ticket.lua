@@ -0,0 +1,50 @@
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.用户id
+local userId = ARGV[2]
+-- 1.3.放行人数 = (总库存 + 归还的库存) * multiplier
+local multiplier = tonumber(ARGV[3])
+
+-- 2.数据key
+-- 2.1.总库存key
+local totalKey = 'seckill:total:' .. voucherId
+-- 2.2.排队号key，hash userId -> 排队号
+local ticketKey = 'seckill:ticket:' .. voucherId
+-- 2.3.库存key
+local stockKey = 'seckill:stock:' .. voucherId
+-- 2.4.超时取消、对账修复等归还的库存数量
+local returnedKey = 'seckill:returned:' .. voucherId
+
+-- 3.脚本业务
+-- 3.1.没有记录总库存，不做排队，直接放行
+local total = tonumber(redis.call('get', totalKey) or '-1')
+if(total < 0) then
+    return 0
+end
+-- 3.2.已经领过号的用户沿用原来的排队号
+if(redis.call('hexists', ticketKey, userId) == 1) then
+    return 0
+end
+-- 3.3.还有名额，领号并放行 hset ticketKey userId hlen+1
+--     归还的库存同样按multiplier增加名额
+local returned = tonumber(redis.call('get', returnedKey) or '0')
+local position = redis.call('hlen', ticketKey) + 1
+if(position <= math.ceil((total + returned) * multiplier)) then
+    redis.call('hset', ticketKey, userId, position)
+    return 0
+end
+-- 3.4.名额已满：库存还没卖完返回2（稍后再试），否则返回1（库存不足）
+local segments = tonumber(redis.call('get', 'seckill:segments:' .. voucherId) or '0')
+local stock = 0
+if(segments > 1) then
+    for i = 0, segments - 1 do
+        stock = stock + tonumber(redis.call('get', stockKey .. ':' .. i) or '0')
+    end
+else
+    stock = tonumber(redis.call('get', stockKey) or '0')
+end
+if(stock > 0) then
+    return 2
+end
+return 1
@@ -0,0 +1,8 @@
+-- 认领已经到期的超时任务：取出score不大于ARGV[1]的最多ARGV[2]个成员并删除，返回被认领的成员
+-- 删除和读取在同一个脚本中完成，多个实例同时认领时每个任务只会被一个实例拿到
+local key = KEYS[1]
+local members = redis.call('zrangebyscore', key, '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2]))
+if(#members > 0) then
+    redis.call('zrem', key, unpack(members))
+end
+return members
@@ -0,0 +1,101 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * JSON和二进制两种缓存编码的对比：编码后的大小、编码和解码的耗时
+ * 先预热让JIT编译完成，再各自循环编解码同一个店铺；同时验证解码结果与原数据一致，损坏的数据解码为null
+ * 默认构建不运行，用 mvn test -Pbenchmark 运行
+ */
+@Slf4j
+@Tag("benchmark")
+class CacheCodecBenchmarkTest {
+
+    private static final int WARM_UP = 20000;
+    private static final int ITERATIONS = 50000;
+
+    @Test
+    void compareCodecs() {
+        BinaryCacheCodec binary = new BinaryCacheCodec();
+        ReflectionTestUtils.setField(binary, "compressThreshold", 1024);
+        JsonCacheCodec json = new JsonCacheCodec();
+        RedisData redisData = redisData(shop());
+
+        for (CacheCodec codec : Arrays.asList(json, binary)) {
+            byte[] bytes = codec.encode(redisData);
+            assertTrue(codec.canDecode(bytes));
+            RedisData decoded = codec.decode(bytes, Shop.class);
+            assertEquals(redisData.getData(), decoded.getData());
+            assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+            assertEquals(redisData.getRebuildCostMs(), decoded.getRebuildCostMs());
+
+            run(codec, redisData, WARM_UP);
+            long encodeNanos = time(() -> {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    codec.encode(redisData);
+                }
+            });
+            long decodeNanos = time(() -> {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    codec.decode(bytes, Shop.class);
+                }
+            });
+            log.info("缓存编码={}，大小{}字节，编码{}ns/次，解码{}ns/次", codec.name(), bytes.length,
+                    encodeNanos / ITERATIONS, decodeNanos / ITERATIONS);
+        }
+
+        // 截断的二进制数据按未命中处理
+        byte[] bytes = binary.encode(redisData);
+        assertNull(binary.decode(Arrays.copyOf(bytes, bytes.length / 2), Shop.class));
+    }
+
+    private static void run(CacheCodec codec, RedisData redisData, int times) {
+        for (int i = 0; i < times; i++) {
+            codec.decode(codec.encode(redisData), Shop.class);
+        }
+    }
+
+    private static long time(Runnable runnable) {
+        long begin = System.nanoTime();
+        runnable.run();
+        return System.nanoTime() - begin;
+    }
+
+    private static RedisData redisData(Shop shop) {
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.now().plusMinutes(30).withNano(0));
+        redisData.setRebuildCostMs(12L);
+        return redisData;
+    }
+
+    private static Shop shop() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg");
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+        shop.setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        return shop;
+    }
+}
@@ -0,0 +1,87 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * RedisIdWorker三种模式的吞吐量对比：redis（每个id一次INCR）、segment（每段一次INCRBY）、snowflake（本地生成）
+ * 多线程并发生成id，验证没有重复，并输出每秒生成的id数；
+ * Redis使用内存中的jedis-mock，一次往返比真实Redis慢，INCR模式的差距只会更明显
+ * 默认构建不运行，用 mvn test -Pbenchmark 运行
+ */
+@Slf4j
+@Tag("benchmark")
+class RedisIdWorkerBenchmarkTest extends RedisMockTestBase {
+
+    private static final int THREADS = 8;
+    private static final int IDS_PER_THREAD = 1000;
+    private static final int WARM_UP_IDS = 200;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"redis", "segment", "snowflake"})
+    void throughput(String mode) throws Exception {
+        RedisIdWorker worker = newWorker(mode);
+        for (int i = 0; i < WARM_UP_IDS; i++) {
+            worker.nextId("bench");
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        List<Future<?>> futures = new ArrayList<>(THREADS);
+        long begin = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < IDS_PER_THREAD; i++) {
+                    ids.add(worker.nextId("order"));
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long costNanos = System.nanoTime() - begin;
+        executor.shutdown();
+        close(worker);
+
+        int total = THREADS * IDS_PER_THREAD;
+        assertEquals(total, ids.size(), "生成了重复的id");
+        log.info("id生成模式={}，{}个线程共{}个id，耗时{}ms，{}个/秒", mode, THREADS, total,
+                TimeUnit.NANOSECONDS.toMillis(costNanos), total * TimeUnit.SECONDS.toNanos(1) / costNanos);
+    }
+
+    //等正在进行的预取完成后再关闭，避免中断Redis命令
+    private void close(RedisIdWorker worker) throws InterruptedException {
+        ExecutorService prefetchExecutor = (ExecutorService) ReflectionTestUtils.getField(worker, "prefetchExecutor");
+        assertNotNull(prefetchExecutor);
+        prefetchExecutor.shutdown();
+        prefetchExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        ReflectionTestUtils.invokeMethod(worker, "destroy");
+    }
+
+    private RedisIdWorker newWorker(String mode) {
+        RedisIdWorker worker = new RedisIdWorker();
+        ReflectionTestUtils.setField(worker, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(worker, "environment", new MockEnvironment());
+        ReflectionTestUtils.setField(worker, "mode", mode);
+        ReflectionTestUtils.setField(worker, "segmentStep", 1000);
+        ReflectionTestUtils.setField(worker, "prefetchRatio", 0.2);
+        ReflectionTestUtils.setField(worker, "workerLeaseSeconds", 30L);
+        ReflectionTestUtils.invokeMethod(worker, "init");
+        return worker;
+    }
+}
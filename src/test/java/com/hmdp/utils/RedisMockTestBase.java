@@ -0,0 +1,41 @@
+package com.hmdp.utils;
+
+import com.github.fppt.jedismock.RedisServer;
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.protocol.ProtocolVersion;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+/**
+ * 使用内存中的Redis（jedis-mock）的测试基类：每个测试方法启动一个新的Redis，结束后关闭
+ */
+abstract class RedisMockTestBase {
+
+    private RedisServer server;
+    private LettuceConnectionFactory connectionFactory;
+    protected StringRedisTemplate stringRedisTemplate;
+
+    @BeforeEach
+    void startRedis() throws Exception {
+        server = RedisServer.newRedisServer();
+        server.start();
+        // jedis-mock只支持RESP2
+        LettuceClientConfiguration clientConfig = LettuceClientConfiguration.builder()
+                .clientOptions(ClientOptions.builder().protocolVersion(ProtocolVersion.RESP2).build())
+                .build();
+        connectionFactory = new LettuceConnectionFactory(
+                new RedisStandaloneConfiguration("localhost", server.getBindPort()), clientConfig);
+        connectionFactory.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+    }
+
+    @AfterEach
+    void stopRedis() throws Exception {
+        connectionFactory.destroy();
+        server.stop();
+    }
+}
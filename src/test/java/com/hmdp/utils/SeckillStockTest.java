@@ -0,0 +1,114 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 并发执行seckill.lua，验证不分段和分段库存下都不会超卖、一人只能下一单
+ * 使用内存中的Redis（jedis-mock），库存由SeckillWarmer按配置的段数写入
+ */
+class SeckillStockTest extends RedisMockTestBase {
+
+    private static final long VOUCHER_ID = 1L;
+    private static final int STOCK = 100;
+    private static final int USERS = 300;
+    private static final int REQUESTS = 600;
+    private static final int THREADS = 32;
+
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 4})
+    void neverOversells(int segments) throws Exception {
+        preload(segments);
+
+        // 300个用户并发发起600次请求，同一个用户会重复请求
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        AtomicInteger success = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>(REQUESTS);
+        for (int i = 0; i < REQUESTS; i++) {
+            long userId = i % USERS + 1;
+            long orderId = i + 1;
+            futures.add(executor.submit(() -> {
+                Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(),
+                        String.valueOf(VOUCHER_ID), String.valueOf(userId), String.valueOf(orderId),
+                        "1", "0", String.valueOf(System.currentTimeMillis()), "60", "1");
+                assertNotNull(result);
+                if (result == 0) {
+                    success.incrementAndGet();
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        // 用户数多于库存，库存应当正好卖完
+        assertEquals(STOCK, success.get());
+        assertEquals(0, remainingStock(segments));
+        assertEquals(STOCK, stringRedisTemplate.opsForSet().size(SECKILL_ORDER_KEY + VOUCHER_ID));
+
+        // 队列中的订单数等于卖出数，每个用户只有一个订单
+        List<MapRecord<String, Object, Object>> records =
+                stringRedisTemplate.opsForStream().range("stream.orders", Range.unbounded());
+        assertNotNull(records);
+        assertEquals(STOCK, records.size());
+        Set<Object> buyers = new HashSet<>();
+        for (MapRecord<String, Object, Object> record : records) {
+            assertTrue(buyers.add(record.getValue().get("userId")), "用户重复下单：" + record.getValue());
+        }
+    }
+
+    private void preload(int segments) {
+        SeckillWarmer warmer = new SeckillWarmer();
+        ReflectionTestUtils.setField(warmer, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(warmer, "stockSegments", segments);
+        SeckillVoucher voucher = new SeckillVoucher();
+        voucher.setVoucherId(VOUCHER_ID);
+        voucher.setStock(STOCK);
+        voucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        warmer.preload(voucher);
+    }
+
+    //剩余库存，每一段都不能小于0
+    private int remainingStock(int segments) {
+        if (segments <= 1) {
+            return Integer.parseInt(stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + VOUCHER_ID));
+        }
+        int total = 0;
+        for (int i = 0; i < segments; i++) {
+            int stock = Integer.parseInt(stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + VOUCHER_ID + ":" + i));
+            assertTrue(stock >= 0, "第" + i + "段库存为负数：" + stock);
+            total += stock;
+        }
+        return total;
+    }
+}